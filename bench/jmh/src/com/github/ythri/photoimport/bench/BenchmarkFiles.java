@@ -0,0 +1,107 @@
+package com.github.ythri.photoimport.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Creates the synthetic files used by the benchmarks: JPEG files with a minimal EXIF segment that
+ * contains only a DateTimeOriginal tag, and DCF trees of such files. The files are filled up to
+ * the requested size after the EXIF segment, such that copying and checksum computation work on
+ * realistic sizes while the metadata can still be found in the first bytes.
+ */
+final class BenchmarkFiles {
+	private BenchmarkFiles() {}
+
+	/**
+	 * Returns the content of a JPEG file with the given DateTimeOriginal.
+	 * @param dateTime DateTime in the EXIF format {@code yyyy:MM:dd HH:mm:ss}
+	 * @param size size of the file in bytes; at least the size of the EXIF segment is used
+	 */
+	static byte[] jpeg(String dateTime, int size) {
+		ByteBuffer tiff = ByteBuffer.allocate(64);
+		tiff.putShort((short) 0x4D4D).putShort((short) 42).putInt(8);
+		// IFD0 with a single entry pointing to the EXIF IFD at offset 26
+		tiff.putShort((short) 1).putShort((short) 0x8769).putShort((short) 4).putInt(1).putInt(26).putInt(0);
+		// EXIF IFD with a single DateTimeOriginal entry, whose value is at offset 44
+		tiff.putShort((short) 1).putShort((short) 0x9003).putShort((short) 2).putInt(20).putInt(44).putInt(0);
+		tiff.put(dateTime.getBytes(StandardCharsets.US_ASCII)).put((byte) 0);
+
+		ByteBuffer jpeg = ByteBuffer.allocate(Math.max(size, 86));
+		jpeg.putShort((short) 0xFFD8);
+		jpeg.putShort((short) 0xFFE1).putShort((short) (2 + 6 + 64));
+		jpeg.put("Exif".getBytes(StandardCharsets.US_ASCII)).putShort((short) 0);
+		jpeg.put(tiff.array());
+		jpeg.putShort((short) 0xFFDA);
+		for (int i = jpeg.position(); i < jpeg.capacity() - 2; i++) {
+			jpeg.put((byte) i);
+		}
+		jpeg.putShort(jpeg.capacity() - 2, (short) 0xFFD9);
+		return jpeg.array();
+	}
+
+	/**
+	 * Writes a JPEG file with the given DateTimeOriginal.
+	 */
+	static void writeJpeg(File file, String dateTime, int size) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(jpeg(dateTime, size));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Creates a DCF file system in the given root directory. The DateTime of the files grows with
+	 * their DCF numbers, one minute per file.
+	 * @param root root directory of the file system, which will contain the DCIM directory
+	 * @param directories number of DCF directories
+	 * @param filesPerDirectory number of files in each directory
+	 * @param size size of each file in bytes
+	 */
+	static void createDcfTree(File root, int directories, int filesPerDirectory, int size) throws IOException {
+		Calendar calendar = new GregorianCalendar(2020, Calendar.JANUARY, 1, 12, 0, 0);
+		for (int d = 0; d < directories; d++) {
+			File directory = new File(root, String.format("DCIM/%03dCANON", 100 + d));
+			if (!directory.mkdirs()) {
+				throw new IOException("Could not create directory " + directory);
+			}
+			for (int f = 1; f <= filesPerDirectory; f++) {
+				String dateTime = String.format("%1$tY:%1$tm:%1$td %1$tH:%1$tM:%1$tS", calendar);
+				writeJpeg(new File(directory, String.format("IMG_%04d.JPG", f)), dateTime, size);
+				calendar.add(Calendar.MINUTE, 1);
+			}
+		}
+	}
+
+	/**
+	 * Creates an empty temporary directory.
+	 */
+	static File createTempDirectory(String prefix) throws IOException {
+		File directory = File.createTempFile(prefix, "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Could not create temporary directory " + directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Deletes a file or a directory with all its contents.
+	 */
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,94 @@
+package com.github.ythri.photoimport.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.ythri.photoimport.config.Suffix;
+import com.github.ythri.photoimport.config.TargetConfig;
+import com.github.ythri.photoimport.core.CopyTask;
+import com.github.ythri.photoimport.core.FanOutCopyTask;
+import com.github.ythri.photoimport.core.ImportGroup;
+
+/**
+ * Measures copying a single image group to one target, including resolving the destination, 
+ * writing the temporary file, renaming it and, optionally, verifying the copy. The destination is 
+ * removed before each invocation, so every invocation writes a new file. Each copy mode of the
+ * target is measured separately, to compare the copy strategies for small and large files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyBenchmarks {
+	@Param({ "65536", "1048576", "16777216", "67108864" })
+	public int size;
+
+	@Param({ "auto", "buffer", "doublebuffer", "mmap", "copy", "transfer" })
+	public TargetConfig.CopyMode copymode;
+
+	@Param({ "false", "true" })
+	public boolean verify;
+
+	private File directory;
+	private File target;
+	private ImportGroup group;
+	private FanOutCopyTask copyTask;
+
+	@Setup
+	public void setup() throws IOException {
+		Logger.getLogger("com.github.ythri.photoimport").setLevel(java.util.logging.Level.OFF);
+		directory = BenchmarkFiles.createTempDirectory("photoimport-copy");
+		File source = new File(directory, "IMG_0001.JPG");
+		BenchmarkFiles.writeJpeg(source, "2020:01:01 12:00:00", size);
+		group = new ImportGroup(Arrays.asList(source), false);
+		target = new File(directory, "target");
+		target.mkdir();
+	}
+
+	@Setup(Level.Invocation)
+	public void prepare() {
+		BenchmarkFiles.delete(new File(target, "copies"));
+		TargetConfig config = new TargetConfig();
+		config.root = target.getPath();
+		config.path = "copies";
+		config.file = "{FileName}";
+		config.verify = verify;
+		config.copymode = copymode;
+		config.suffix = Suffix.defaultSuffix;
+		config.extensions = Arrays.asList("jpg");
+		copyTask = new FanOutCopyTask(Collections.singletonList(new CopyTask("benchmark", config, new HashMap<String, String>())));
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public FanOutCopyTask copy() {
+		copyTask.copyFiles(Collections.singletonList(group));
+		return copyTask;
+	}
+}
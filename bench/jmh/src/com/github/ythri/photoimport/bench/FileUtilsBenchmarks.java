@@ -0,0 +1,80 @@
+package com.github.ythri.photoimport.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.ythri.photoimport.core.FileUtils;
+
+/**
+ * Measures the file name helpers and the checksum computation of {@link FileUtils}. The checksum 
+ * is computed for files of different sizes, both through the page cache and, where supported, 
+ * with direct I/O. Note that the file is read from the page cache in the first case, so the 
+ * results show the CPU cost of the checksum rather than the speed of the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileUtilsBenchmarks {
+	private static final File NAME = new File("DCIM/100CANON/IMG_0001.JPG");
+
+	/**
+	 * A file of the given size, whose checksum is computed.
+	 */
+	@State(Scope.Benchmark)
+	public static class Image {
+		@Param({ "65536", "1048576", "16777216" })
+		public int size;
+
+		@Param({ "false", "true" })
+		public boolean direct;
+
+		File directory;
+		File file;
+
+		@Setup
+		public void setup() throws IOException {
+			directory = BenchmarkFiles.createTempDirectory("photoimport-checksum");
+			file = new File(directory, "IMG_0001.JPG");
+			BenchmarkFiles.writeJpeg(file, "2020:01:01 12:00:00", size);
+		}
+
+		@TearDown
+		public void tearDown() {
+			BenchmarkFiles.delete(directory);
+		}
+	}
+
+	@Benchmark
+	public long checksum(Image image) {
+		return FileUtils.checksum(image.file, image.direct);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public String baseName() {
+		return FileUtils.getBaseName(NAME);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public String extension() {
+		return FileUtils.getExtension(NAME);
+	}
+}
@@ -0,0 +1,76 @@
+package com.github.ythri.photoimport.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.ythri.photoimport.core.ImportGroup;
+
+/**
+ * Measures the construction of image groups from synthetic JPEG files, with and without reading 
+ * their DateTime from the EXIF data. The metadata cache is disabled, so every group reads the 
+ * beginning of its file; the files are small enough to stay in the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImportGroupBenchmarks {
+	private static final int FILES = 256;
+
+	private File directory;
+	private File[] files;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		Logger.getLogger("com.github.ythri.photoimport").setLevel(Level.OFF);
+		ImportGroup.getExifFromExtensions(Arrays.asList("jpg"));
+		ImportGroup.setMetadataCache(null);
+
+		directory = BenchmarkFiles.createTempDirectory("photoimport-groups");
+		BenchmarkFiles.createDcfTree(directory, 1, FILES, 64 * 1024);
+		files = new File(directory, "DCIM/100CANON").listFiles();
+		Arrays.sort(files);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkFiles.delete(directory);
+	}
+
+	private File nextFile() {
+		next = (next + 1) % FILES;
+		return files[next];
+	}
+
+	@Benchmark
+	public ImportGroup construct() {
+		return new ImportGroup(Collections.singletonList(nextFile()), true);
+	}
+
+	@Benchmark
+	public Date constructAndReadDate() {
+		return new ImportGroup(Collections.singletonList(nextFile()), true).getDateTime();
+	}
+}
@@ -0,0 +1,78 @@
+package com.github.ythri.photoimport.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.ythri.photoimport.config.SourceConfig;
+import com.github.ythri.photoimport.core.ImportGroup;
+import com.github.ythri.photoimport.core.ImportSource;
+
+/**
+ * Measures the search of a generated DCF file system with 10 directories of 200 files each, with 
+ * and without reading the DateTime of the groups, and with different numbers of metadata threads. 
+ * The metadata cache is disabled and the files stay in the page cache, so the results show the 
+ * CPU and system call overhead of the search rather than the speed of a card reader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImportSourceBenchmarks {
+	@Param({ "false", "true" })
+	public boolean dateNeeded;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private File directory;
+	private ImportSource source;
+
+	@Setup
+	public void setup() throws IOException {
+		Logger.getLogger("com.github.ythri.photoimport").setLevel(Level.OFF);
+		ImportGroup.getExifFromExtensions(Arrays.asList("jpg"));
+		ImportGroup.setMetadataCache(null);
+
+		directory = BenchmarkFiles.createTempDirectory("photoimport-source");
+		BenchmarkFiles.createDcfTree(directory, 10, 200, 16 * 1024);
+
+		SourceConfig config = new SourceConfig();
+		config.path = directory.getPath();
+		config.searchMode = SourceConfig.SearchMode.dcf;
+		source = new ImportSource();
+		source.setSourceConfig(config);
+		source.setThreads(threads);
+		source.setDateNeeded(dateNeeded);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public List<ImportGroup> findPhotos() {
+		return source.findPhotos();
+	}
+}
@@ -0,0 +1,120 @@
+package com.github.ythri.photoimport.bench;
+
+import java.io.File;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.ythri.photoimport.core.ImportGroup;
+import com.github.ythri.photoimport.core.PathFormatter;
+
+/**
+ * Measures the formatting of the path and file templates of a target for a single image group, 
+ * both with precompiled templates and through the template cache of the {@link PathFormatter}. 
+ * The previous implementation, which matched a regular expression against the pattern for every 
+ * group, is kept as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathFormatterBenchmarks {
+	private static final String PATH = "{Year}/{Month}_{MonthName}/{Day}-{EventName}";
+	private static final String FILE = "IMG_{DcfNumber}";
+	private static final int GROUPS = 1024;
+
+	/**
+	 * The previous implementation of {@link PathFormatter#format(String,ImportGroup)}.
+	 */
+	private static class LegacyFormatter {
+		private Map<String, String> variables;
+		private Pattern replacer = Pattern.compile("\\{(\\w+)\\}");
+
+		LegacyFormatter(Map<String, String> variables) {
+			this.variables = variables;
+		}
+
+		String format(String pattern, ImportGroup group) {
+			Matcher m = replacer.matcher(pattern);
+			StringBuffer sb = new StringBuffer();
+			while (m.find()) {
+				String var = m.group(1).toLowerCase();
+				if (variables.containsKey(var)) {
+					m.appendReplacement(sb, variables.get(var));
+				} else {
+					m.appendReplacement(sb, group.getProperty(var));
+				}
+			}
+			m.appendTail(sb);
+			return sb.toString();
+		}
+	}
+
+	private ImportGroup[] groups;
+	private LegacyFormatter legacy;
+	private PathFormatter formatter;
+	private PathFormatter.Template path;
+	private PathFormatter.Template file;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		Logger.getLogger("com.github.ythri.photoimport").setLevel(Level.OFF);
+		Map<String, String> variables = new HashMap<String, String>();
+		variables.put("eventname", "Summer_Party");
+		legacy = new LegacyFormatter(variables);
+		formatter = new PathFormatter(variables);
+		path = formatter.compile(PATH);
+		file = formatter.compile(FILE);
+
+		groups = new ImportGroup[GROUPS];
+		for (int i = 0; i < GROUPS; i++) {
+			File image = new File(String.format("DCIM/%03dCANON/IMG_%04d.JPG", 100 + i / 100, i % 100));
+			groups[i] = new ImportGroup(Arrays.asList(image), true);
+			// read the DateTime once, so only the formatting is measured
+			groups[i].getDateTime();
+		}
+	}
+
+	private ImportGroup nextGroup() {
+		next = (next + 1) & (GROUPS - 1);
+		return groups[next];
+	}
+
+	@Benchmark
+	public String legacyRegex() {
+		ImportGroup group = nextGroup();
+		return legacy.format(PATH, group) + legacy.format(FILE, group);
+	}
+
+	@Benchmark
+	public String compiledTemplates() {
+		ImportGroup group = nextGroup();
+		return path.format(group) + file.format(group);
+	}
+
+	@Benchmark
+	public String cachedTemplates() {
+		ImportGroup group = nextGroup();
+		return formatter.format(PATH, group) + formatter.format(FILE, group);
+	}
+}
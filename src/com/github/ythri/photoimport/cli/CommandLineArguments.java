@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Date;
 
 import java.text.DateFormat;
@@ -11,6 +12,7 @@ import java.text.SimpleDateFormat;
 import java.text.ParseException;
 
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 
 /**
  * This class specifies the command line arguments of the command line interface.
@@ -60,6 +62,63 @@ class CommandLineArguments {
 	@Parameter(names = "--end", description = "copy files up to a given date")
 	private String end = null;
 
+	/**
+	 * Skip all image groups that are recorded in the import ledgers of the active targets, and 
+	 * record all newly imported files there.
+	 */
+	@Parameter(names = "--incremental", description = "skip files that were already imported to the targets")
+	private Boolean incremental = false;
+
+	/**
+	 * Start copying the image groups of each source directory as soon as the directory was 
+	 * searched, instead of searching the complete source first.
+	 */
+	@Parameter(names = "--stream", description = "copy files while the source is still being searched")
+	private Boolean stream = false;
+
+	/**
+	 * Resume an interrupted import from its journal instead of scanning the source directory.
+	 */
+	@Parameter(names = "--resume", description = "finish the copies of an interrupted import")
+	private Boolean resume = false;
+
+	/**
+	 * Resolve all destinations and write them to a plan file instead of copying any file.
+	 */
+	@Parameter(names = "--plan", description = "write the planned copies to the given file without copying")
+	private String plan = null;
+
+	/**
+	 * Execute the copies of a plan file instead of scanning the source directory.
+	 */
+	@Parameter(names = "--apply", description = "copy the files of the given plan file")
+	private String apply = null;
+
+	/**
+	 * Run as a daemon, which imports each volume with a DCIM directory that appears in the given 
+	 * directory, e.g., the directory in which the system mounts memory cards.
+	 */
+	@Parameter(names = "--watch", description = "import each card that is mounted in the given directory")
+	private String watch = null;
+
+	/**
+	 * The local port of the control socket of the daemon.
+	 */
+	@Parameter(names = "--port", description = "port of the control socket of the daemon")
+	private Integer port = Daemon.DEFAULT_PORT;
+
+	/**
+	 * Send a command to a running daemon instead of importing, e.g., "status" or "set Name=Value".
+	 */
+	@Parameter(names = "--send", description = "send a command to the running daemon")
+	private String command = null;
+
+	/**
+	 * Write a report with the metrics of the import to a JSON file.
+	 */
+	@Parameter(names = "--report", description = "write a JSON report of the import to the given file")
+	private String report = null;
+
 	/**
 	 * Returns the name of the configuration file that should be loaded and processed.
 	 * @return name of the configuration file
@@ -108,6 +167,35 @@ class CommandLineArguments {
 		new SimpleDateFormat("yyyyMMddHHmmss")
 	};
 
+	/**
+	 * Checks that the arguments do not combine conflicting modes. At most one of the modes 
+	 * {@code --watch}, {@code --plan}, {@code --apply}, {@code --resume} and {@code --send} may be
+	 * given, and the modes that do not search the source cannot be combined with {@code --stream} 
+	 * or the filters of the search.
+	 * @throws ParameterException if conflicting arguments were given
+	 */
+	public void validate() {
+		Map<String, Boolean> modes = new LinkedHashMap<String, Boolean>();
+		modes.put("--watch", watch != null);
+		modes.put("--plan", plan != null);
+		modes.put("--apply", apply != null);
+		modes.put("--resume", resume);
+		modes.put("--send", command != null);
+		List<String> given = new ArrayList<String>();
+		for (Map.Entry<String, Boolean> mode : modes.entrySet()) {
+			if (mode.getValue()) given.add(mode.getKey());
+		}
+		if (given.size() > 1) {
+			throw new ParameterException("The options " + given + " cannot be combined");
+		}
+		if (stream && (plan != null || apply != null || resume)) {
+			throw new ParameterException("--stream cannot be combined with " + given.get(0));
+		}
+		if ((min != null || max != null || begin != null || end != null) && (apply != null || resume)) {
+			throw new ParameterException("The filters --min, --max, --begin and --end cannot be combined with " + given.get(0));
+		}
+	}
+
 	/**
 	 * Checks if the help argument was given and thus the usage should be displayed.
 	 * @return true, if usage should be displayed, otherwise false
@@ -116,6 +204,78 @@ class CommandLineArguments {
 		return help;
 	}
 
+	/**
+	 * Checks if the import should be incremental, i.e., use the import ledgers of the targets.
+	 * @return true, if already imported files should be skipped
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Checks if the image groups should be copied while the source is still being searched.
+	 * @return true, if the search and the copies should be streamed
+	 */
+	public boolean isStream() {
+		return stream;
+	}
+
+	/**
+	 * Checks if an interrupted import should be resumed.
+	 * @return true, if the journal of the interrupted import should be replayed
+	 */
+	public boolean isResume() {
+		return resume;
+	}
+
+	/**
+	 * Returns the name of the file the plan of the import should be written to.
+	 * @return name of the plan file, or {@code null} if the files should be copied
+	 */
+	public String getPlanFile() {
+		return plan;
+	}
+
+	/**
+	 * Returns the name of the plan file that should be executed.
+	 * @return name of the plan file, or {@code null} if the source directory should be scanned
+	 */
+	public String getApplyFile() {
+		return apply;
+	}
+
+	/**
+	 * Returns the name of the file the report of the import should be written to.
+	 * @return name of the report file, or {@code null} if no report should be written
+	 */
+	public String getReportFile() {
+		return report;
+	}
+
+	/**
+	 * Returns the directory that is watched for new volumes in the daemon mode.
+	 * @return name of the watched directory, or {@code null} if no daemon should be run
+	 */
+	public String getWatchDirectory() {
+		return watch;
+	}
+
+	/**
+	 * Returns the local port of the control socket of the daemon.
+	 * @return port of the control socket
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns the command that should be sent to the running daemon.
+	 * @return daemon command, or {@code null} if no command should be sent
+	 */
+	public String getCommand() {
+		return command;
+	}
+
 	public Integer getMin() {
 		return min;
 	}
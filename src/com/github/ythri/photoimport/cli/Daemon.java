@@ -0,0 +1,468 @@
+package com.github.ythri.photoimport.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import com.github.ythri.photoimport.config.Configuration;
+import com.github.ythri.photoimport.config.ConfigManager;
+import com.github.ythri.photoimport.config.SourceConfig;
+import com.github.ythri.photoimport.core.CopyJournal;
+import com.github.ythri.photoimport.core.ExifDateReader;
+import com.github.ythri.photoimport.core.ImportGroup;
+import com.github.ythri.photoimport.core.MetadataCache;
+import com.github.ythri.photoimport.core.Metrics;
+
+/**
+ * The daemon mode of the command line interface. The daemon keeps the configuration and the
+ * metadata cache loaded and watches a directory, in which the system mounts memory cards. Each
+ * volume that appears in the directory and contains a {@code DCIM} directory is imported
+ * automatically, copying the groups of each source directory while the next directories are
+ * searched. The imports are executed one after another.
+ * <p>
+ * The daemon is controlled by text commands on a local socket, one command per connection, which
+ * can be sent with {@code --send}:
+ * <ul>
+ * <li>{@code status} shows the current import, its progress and the assigned variables,</li>
+ * <li>{@code set Name=Value} and {@code unset Name} assign variables for the next imports,</li>
+ * <li>{@code import Path} imports the volume at the given path, e.g., a card that was already
+ * mounted when the daemon was started, and</li>
+ * <li>{@code stop} stops the daemon after the current import.</li>
+ * </ul>
+ * The socket only accepts connections from the local host, but any local user could connect to
+ * it. Therefore, the daemon writes a random token to a file in the configuration directory, which
+ * only the owner can read, and each command has to be preceded by this token.
+ * <p>
+ * If a variable of the targets is not assigned when a card appears, the import waits until all
+ * variables were assigned with {@code set}. A card is not imported while the journal of an
+ * interrupted import exists, since starting a new import would discard its incomplete files;
+ * the interrupted import has to be finished with {@code --resume} first.
+ */
+class Daemon {
+	private static final Logger log = Logger.getLogger(Daemon.class.getName());
+
+	/**
+	 * Default port of the control socket.
+	 */
+	static final int DEFAULT_PORT = 47231;
+
+	private static final int TOKEN_BYTES = 16;
+
+	private static final long MOUNT_TIMEOUT = 10000;
+	private static final long MOUNT_POLL_INTERVAL = 50;
+
+	private final ConfigManager configManager;
+	private final Configuration config;
+	private final File configDir;
+	private final List<String> targets;
+	private final CommandLineArguments arguments;
+	private final CopyJournal journal;
+	private final Set<String> variables;
+	private final Map<String, String> assignments;
+	private final List<File> waiting = new ArrayList<File>();
+	private final ExecutorService importer = Executors.newSingleThreadExecutor();
+	private MetadataCache cache = null;
+	private WatchService watcher = null;
+	private ServerSocket server = null;
+	private byte[] token = null;
+	private volatile File current = null;
+	private volatile String last = "none";
+
+	Daemon(ConfigManager configManager, Configuration config, File configDir, List<String> targets, CommandLineArguments arguments) {
+		this.configManager = configManager;
+		this.config = config;
+		this.configDir = configDir;
+		this.targets = targets;
+		this.arguments = arguments;
+		this.journal = new CopyJournal(new File(configDir, CopyJournal.FILE_NAME));
+		this.variables = new TreeSet<String>(configManager.getVariables(config, targets));
+		this.variables.removeAll(ImportGroup.PROPERTIES);
+		this.assignments = new TreeMap<String, String>(arguments.getVariables());
+	}
+
+	/**
+	 * Runs the daemon until it is stopped with the {@code stop} command.
+	 * @param mountDirectory directory in which new volumes appear
+	 * @param port local port of the control socket
+	 * @throws IOException if the directory cannot be watched or the control socket cannot be opened
+	 */
+	void run(File mountDirectory, int port) throws IOException {
+		cache = Main.setUpMetadata(config, configDir);
+		warmUp();
+
+		watcher = FileSystems.getDefault().newWatchService();
+		mountDirectory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		File tokenFile = getTokenFile(configDir, port);
+		try {
+			token = createToken(tokenFile);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		Thread control = new Thread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}, "photoimport-control");
+		control.setDaemon(true);
+		control.start();
+		log.info("Watching " + mountDirectory + " for new cards; control port " + port);
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+					File volume = new File(mountDirectory, event.context().toString());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						log.info("Found new volume " + volume);
+						submit(volume);
+					} else {
+						removed(volume);
+					}
+				}
+				if (!key.reset()) {
+					log.severe("Directory " + mountDirectory + " cannot be watched anymore");
+					break;
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			server.close();
+			if (!tokenFile.delete()) {
+				log.warning("Unable to remove the token file " + tokenFile);
+			}
+			importer.shutdown();
+			try {
+				importer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		log.info("Daemon stopped");
+	}
+
+	/**
+	 * Returns the file with the token of the daemon with the given control port.
+	 */
+	private static File getTokenFile(File configDir, int port) {
+		return new File(configDir, "photoimport-" + port + ".token");
+	}
+
+	/**
+	 * Writes a new random token to the given file, which can only be read and written by its owner.
+	 * @return token
+	 * @throws IOException if the file cannot be written
+	 */
+	private static byte[] createToken(File file) throws IOException {
+		byte[] random = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+		StringBuilder token = new StringBuilder();
+		for (byte b : random) {
+			token.append(String.format("%02x", b & 0xff));
+		}
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		byte[] bytes = token.toString().getBytes(StandardCharsets.UTF_8);
+		Files.write(path, bytes);
+		return bytes;
+	}
+
+	/**
+	 * Sends a command to a running daemon and prints its response.
+	 * @param configDir configuration directory of the daemon, which contains its token
+	 * @param port local port of the control socket
+	 * @param command command to send
+	 * @return true, if the daemon accepted the command
+	 */
+	static boolean send(File configDir, int port, String command) {
+		File tokenFile = getTokenFile(configDir, port);
+		String token;
+		try {
+			token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			log.severe("No daemon with port " + port + " is running for the configuration in " + configDir 
+				+ ": unable to read " + tokenFile);
+			return false;
+		}
+		Socket socket = null;
+		try {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+			out.write(token + "\n" + command + "\n");
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			boolean accepted = true;
+			String line;
+			while ((line = in.readLine()) != null) {
+				System.out.println(line);
+				accepted &= !line.startsWith("ERROR");
+			}
+			return accepted;
+		} catch (IOException e) {
+			log.severe("No daemon is listening on port " + port + ": " + e.getMessage());
+			return false;
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Loads the classes used by an import, such that the first card is not delayed by loading
+	 * the metadata library.
+	 */
+	private void warmUp() {
+		try {
+			Class.forName("com.drew.imaging.ImageMetadataReader");
+			Class.forName("com.github.ythri.photoimport.core.ImportPipeline");
+			Class.forName("com.github.ythri.photoimport.core.FanOutCopyTask");
+		} catch (ClassNotFoundException e) {
+			log.log(Level.WARNING, "Unable to load the import classes", e);
+		}
+	}
+
+	private void submit(final File volume) {
+		importer.execute(new Runnable() {
+			public void run() {
+				try {
+					importVolume(volume);
+				} catch (RuntimeException e) {
+					log.log(Level.SEVERE, "Import of " + volume + " failed", e);
+					last = volume + ": failed (" + e + ")";
+				} finally {
+					current = null;
+				}
+			}
+		});
+	}
+
+	private void importVolume(File volume) {
+		if (!waitForCard(volume)) {
+			log.info("Ignoring " + volume + ", which contains no DCIM directory");
+			return;
+		}
+		Map<String, String> values;
+		synchronized (this) {
+			Set<String> missing = getMissingVariables();
+			if (!missing.isEmpty()) {
+				if (!waiting.contains(volume)) {
+					waiting.add(volume);
+				}
+				log.warning("Import of " + volume + " waits for the variables " + missing + "; use --send \"set Name=Value\"");
+				return;
+			}
+			values = new HashMap<String, String>(assignments);
+		}
+		if (journal.exists()) {
+			log.warning("Not importing " + volume + ", since an interrupted import was not finished; use --resume");
+			last = volume + ": not imported, an interrupted import was not finished";
+			return;
+		}
+
+		log.info("Importing " + volume + " with " + values);
+		current = volume;
+		SourceConfig source = new SourceConfig();
+		source.path = volume.getPath();
+		source.searchMode = config.source.searchMode;
+		source.groups = config.source.groups;
+		Metrics.reset();
+		ExifDateReader.reset();
+		ProgressLine.start();
+		boolean complete = Main.runImport(configManager, config, source, targets, values, arguments, true, journal, cache);
+		int incomplete = journal.exists() ? journal.readPending().size() : 0;
+		String problems = "";
+		if (incomplete > 0) {
+			problems = ", " + incomplete + " files could not be copied; use --resume";
+		} else if (!complete) {
+			problems = ", some copies failed verification";
+		}
+		last = String.format("%s: copied %d files (%.1f MB) in %.1f s%s", volume, Metrics.getFilesCopied(),
+			Metrics.getBytesCopied() / 1048576.0, Metrics.getElapsed() / 1000.0, problems);
+	}
+
+	/**
+	 * Waits until the DCIM directory of a newly mounted volume is readable, as the directory of a
+	 * volume may appear shortly before the volume is mounted.
+	 * @return true, if the volume contains a DCIM directory
+	 */
+	private boolean waitForCard(File volume) {
+		long deadline = System.currentTimeMillis() + MOUNT_TIMEOUT;
+		File dcim = new File(volume, "DCIM");
+		while (!dcim.isDirectory()) {
+			if (!volume.exists() || System.currentTimeMillis() > deadline) return false;
+			try {
+				Thread.sleep(MOUNT_POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private synchronized void removed(File volume) {
+		if (waiting.remove(volume)) {
+			log.info("Volume " + volume + " was removed before it was imported");
+		}
+	}
+
+	private synchronized Set<String> getMissingVariables() {
+		Set<String> missing = new TreeSet<String>(variables);
+		missing.removeAll(assignments.keySet());
+		return missing;
+	}
+
+	private void serve() {
+		while (!server.isClosed()) {
+			Socket socket = null;
+			try {
+				socket = server.accept();
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				String received = in.readLine();
+				String command = in.readLine();
+				if (command != null) {
+					Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+					if (MessageDigest.isEqual(token, received.trim().getBytes(StandardCharsets.UTF_8))) {
+						out.write(handle(command.trim()));
+					} else {
+						log.warning("Rejected a control command with an invalid token");
+						out.write("ERROR invalid token\n");
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				if (!server.isClosed()) {
+					log.log(Level.WARNING, "Unable to answer control command", e);
+				}
+			} finally {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Executes a control command.
+	 * @return response to the command, one or more lines
+	 */
+	private String handle(String command) {
+		String[] parts = command.split("\\s+", 2);
+		String argument = (parts.length > 1) ? parts[1] : null;
+		switch (parts[0]) {
+			case "status":
+				return status();
+			case "set":
+				if (argument == null || !argument.contains("=")) {
+					return "ERROR expected set Name=Value\n";
+				}
+				String[] keyValue = argument.split("=", 2);
+				List<File> ready = new ArrayList<File>();
+				synchronized (this) {
+					assignments.put(keyValue[0].trim().toLowerCase(), keyValue[1]);
+					if (getMissingVariables().isEmpty()) {
+						ready.addAll(waiting);
+						waiting.clear();
+					}
+				}
+				for (File volume : ready) {
+					submit(volume);
+				}
+				return "OK\n";
+			case "unset":
+				if (argument == null) {
+					return "ERROR expected unset Name\n";
+				}
+				synchronized (this) {
+					assignments.remove(argument.trim().toLowerCase());
+				}
+				return "OK\n";
+			case "import":
+				if (argument == null) {
+					return "ERROR expected import Path\n";
+				}
+				submit(new File(argument));
+				return "OK\n";
+			case "stop":
+				log.info("Stopping daemon");
+				try {
+					watcher.close();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Unable to stop watching", e);
+				}
+				return "OK\n";
+			default:
+				return "ERROR unknown command " + parts[0] + "; use status, set, unset, import or stop\n";
+		}
+	}
+
+	private synchronized String status() {
+		StringBuilder status = new StringBuilder();
+		File volume = current;
+		if (volume != null) {
+			status.append("importing ").append(volume).append(": copied ").append(Metrics.getFilesCopied());
+			status.append(" of ").append(Metrics.getFilesFound()).append(Metrics.isScanComplete() ? "" : "+").append(" files\n");
+		} else {
+			status.append("idle\n");
+		}
+		for (File card : waiting) {
+			status.append("waiting ").append(card).append("\n");
+		}
+		status.append("variables ").append(assignments).append("\n");
+		Set<String> missing = getMissingVariables();
+		if (!missing.isEmpty()) {
+			status.append("missing ").append(missing).append("\n");
+		}
+		status.append("last ").append(last).append("\n");
+		return status.toString();
+	}
+}
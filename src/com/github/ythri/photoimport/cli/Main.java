@@ -1,28 +1,48 @@
 package com.github.ythri.photoimport.cli;
 
+import java.io.File;
+import java.io.IOException;
+
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Scanner;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
 import java.util.logging.Logger;
+import java.util.logging.Level;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 import java.util.logging.Handler;
 import java.util.logging.ConsoleHandler;
 
 import com.beust.jcommander.JCommander;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 import com.github.ythri.photoimport.config.Configuration;
 import com.github.ythri.photoimport.config.ConfigManager;
+import com.github.ythri.photoimport.config.SourceConfig;
 import com.github.ythri.photoimport.core.ImportSource;
+import com.github.ythri.photoimport.core.ImportPipeline;
 import com.github.ythri.photoimport.core.ImportGroup;
+import com.github.ythri.photoimport.core.GroupStore;
+import com.github.ythri.photoimport.core.ExifDateReader;
+import com.github.ythri.photoimport.core.MetadataCache;
+import com.github.ythri.photoimport.core.ImportLedger;
+import com.github.ythri.photoimport.core.ContentIndex;
 import com.github.ythri.photoimport.core.CopyTask;
+import com.github.ythri.photoimport.core.FanOutCopyTask;
+import com.github.ythri.photoimport.core.Verification;
+import com.github.ythri.photoimport.core.CopyJournal;
+import com.github.ythri.photoimport.core.Transfer;
+import com.github.ythri.photoimport.core.Metrics;
+import com.github.ythri.photoimport.core.ImportPlan;
 
 /**
  * Command line interface for the PhotoImport. The command line interface takes 
@@ -48,6 +68,7 @@ public class Main {
 		Handler handler = new ConsoleHandler();
 		handler.setFormatter(new Formatter() {
 			public String format(LogRecord rec) {
+				ProgressLine.clear();
 				if (rec.getThrown() != null) {
 					return String.format("[%tT] %s: %s%n%s%n", new Date(rec.getMillis()), rec.getLevel().getName(), formatMessage(rec), rec.getThrown().toString());
 				} else {
@@ -66,6 +87,7 @@ public class Main {
 		commander.setProgramName("photoimport");
 		try {
 			commander.parse(args);
+			arguments.validate();
 		} catch (Exception e) {
 			log.severe("Argument error: " + e.getMessage() + "\n");
 			commander.usage();
@@ -78,6 +100,12 @@ public class Main {
 			System.exit(0);
 		}
 
+		// send a command to a running daemon
+		if (arguments.getCommand() != null) {
+			File configDir = new File(arguments.getConfigFile()).getAbsoluteFile().getParentFile();
+			System.exit(Daemon.send(configDir, arguments.getPort(), arguments.getCommand()) ? 0 : 1);
+		}
+
 		// Load the configuration file
 		log.info("Reading configuration file");
 		ConfigManager configManager = new ConfigManager();
@@ -87,17 +115,77 @@ public class Main {
 			System.exit(2);
 		}
 		List<String> targets = (arguments.getTargets().size() == 0) ? new ArrayList<String>(config.targets.keySet()) : arguments.getTargets();
-		if (configManager.isValid(config, targets)) {
-			// todo: extensions always lowercase
-			Set<String> extensions = configManager.getExtensions(config, targets);
-			Set<String> variables = configManager.getVariables(config, targets);
-			log.info("Extensions: " + extensions.toString());
-
+		File configDir = new File(arguments.getConfigFile()).getAbsoluteFile().getParentFile();
+		CopyJournal journal = new CopyJournal(new File(configDir, CopyJournal.FILE_NAME));
+		Metrics.reset();
+		ProgressLine.start();
+		if (arguments.isResume()) {
+			if (!journal.exists()) {
+				log.info("No interrupted import found.");
+				System.exit(0);
+			}
+			if (!configManager.isValid(config, targets)) {
+				log.severe("Configuration error");
+				System.exit(2);
+			}
+			log.info("Resuming interrupted import");
+			Map<String, ImportLedger> ledgers = arguments.isIncremental() ? loadLedgers(config, targets) : null;
+			List<Transfer> pending = journal.readPending();
+			log.info("Found " + pending.size() + " incomplete files.");
+			Map<String, ContentIndex> indexes = loadContentIndexes(config, targets);
+			FanOutCopyTask copyTask = createCopyTask(config, targets, new HashMap<String, String>(), ledgers, indexes);
+			copyTask.setJournal(journal);
+			copyTask.copyTransfers(pending);
+			if (!finish(copyTask, journal, ledgers, indexes, arguments.getReportFile())) {
+				System.exit(3);
+			}
+		} else if (arguments.getApplyFile() != null) {
+			if (!configManager.isValid(config, targets)) {
+				log.severe("Configuration error");
+				System.exit(2);
+			}
+			discardInterruptedImport(journal);
+			log.info("Applying plan " + arguments.getApplyFile());
+			List<Transfer> transfers = null;
+			try {
+				transfers = ImportPlan.read(new File(arguments.getApplyFile()));
+			} catch (IOException e) {
+				log.severe("Unable to read plan: " + e.getMessage());
+				System.exit(2);
+			}
+			log.info("Found " + transfers.size() + " planned files.");
+			Map<String, ImportLedger> ledgers = arguments.isIncremental() ? loadLedgers(config, targets) : null;
+			Map<String, ContentIndex> indexes = loadContentIndexes(config, targets);
+			FanOutCopyTask copyTask = createCopyTask(config, targets, new HashMap<String, String>(), ledgers, indexes);
+			copyTask.setJournal(journal);
+			journal.begin(transfers);
+			copyTask.copyTransfers(transfers);
+			if (!finish(copyTask, journal, ledgers, indexes, arguments.getReportFile())) {
+				System.exit(3);
+			}
+		} else if (arguments.getWatchDirectory() != null) {
+			// the sources are the volumes that appear in the watched directory
+			if (config.source == null) {
+				config.source = new SourceConfig();
+			}
+			config.source.path = arguments.getWatchDirectory();
+			if (!configManager.isValid(config, targets)) {
+				log.severe("Configuration error");
+				System.exit(2);
+			}
+			ProgressLine.stop();
+			Daemon daemon = new Daemon(configManager, config, configDir, targets, arguments);
+			try {
+				daemon.run(new File(arguments.getWatchDirectory()), arguments.getPort());
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Unable to start the daemon", e);
+				System.exit(2);
+			}
+		} else if (configManager.isValid(config, targets)) {
 			// identify all used variables and remove those already assigned and file properties
+			Set<String> variables = configManager.getVariables(config, targets);
 			log.info("Variables: " + variables.toString());
-			String[] properties = { "year", "month", "day", "hour", "minute", "second", "monthname", "dayname", 
-				"monthshortname", "dayshortname", "filename", "dcfpathnumber", "dcffilenumber", "dcfnumber" };
-			variables.removeAll(Arrays.asList(properties));
+			variables.removeAll(ImportGroup.PROPERTIES);
 			variables.removeAll(arguments.getVariables().keySet());
 			
 			// read remaining variables
@@ -111,29 +199,280 @@ public class Main {
 			}
 			log.info(assignments.toString());
 
-			// read source directory
-			if (config.options != null) {
-				ImportGroup.setLocale(config.options.getLocale());
-				ImportGroup.getExifFromExtensions(config.options.readexiffrom);
-			}
-			log.info("Reading source directory");
-			ImportSource finder = new ImportSource();
-			finder.setSourceConfig(config.source);
-			finder.setExtensionFilter(extensions);
-			finder.setDcfNumberFilter(arguments.getMin(), arguments.getMax());
-			finder.setDateFilter(arguments.getBegin(), arguments.getEnd());
-			List<ImportGroup> files = finder.findPhotos(); //, arguments.getFrom(), arguments.getTo());
-			Collections.sort(files);
-			log.info("Found " + files.size() + " image groups.");
-
-			// copy files for each active target
-			for (String target : targets) {
-				CopyTask task = new CopyTask(config.targets.get(target), assignments);
-				task.copyFiles(files);
+			if (arguments.getPlanFile() == null) {
+				discardInterruptedImport(journal);
+			}
+			MetadataCache cache = setUpMetadata(config, configDir);
+			if (!runImport(configManager, config, config.source, targets, assignments, arguments, arguments.isStream(), journal, cache)) {
+				System.exit(3);
 			}
 		} else {
 			log.severe("Configuration error");
 			System.exit(2);
 		}
 	}
+
+	/**
+	 * Sets the locale and the EXIF extensions of the image groups, and loads the metadata cache if 
+	 * it is enabled.
+	 * @return metadata cache, or {@code null} if the cache is disabled
+	 */
+	static MetadataCache setUpMetadata(Configuration config, File configDir) {
+		MetadataCache cache = null;
+		if (config.options != null) {
+			ImportGroup.setLocale(config.options.getLocale());
+			ImportGroup.getExifFromExtensions(config.options.readexiffrom);
+			if (config.options.metadatacache) {
+				cache = new MetadataCache(new File(configDir, "photoimport.cache"), config.options.cacheruns);
+				cache.load();
+				ImportGroup.setMetadataCache(cache);
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Searches the given source and copies all found image groups to the active targets, or writes 
+	 * the plan of the import if a plan file is given. All variables must be assigned, and the 
+	 * journal must not contain an interrupted import, which has to be finished or discarded first.
+	 * @param source source to import, e.g., the source of the configuration or a card found by the 
+	 * {@link Daemon}
+	 * @param stream whether to copy the groups while the source is still searched
+	 * @param cache metadata cache, or {@code null} if the cache is disabled
+	 * @return false, if the plan could not be written, a file could not be copied, or a copy could not 
+	 * be verified or did not match its source
+	 */
+	static boolean runImport(ConfigManager configManager, Configuration config, SourceConfig source, List<String> targets, 
+			Map<String, String> assignments, CommandLineArguments arguments, boolean stream, CopyJournal journal, 
+			MetadataCache cache) {
+		// todo: extensions always lowercase
+		Set<String> extensions = configManager.getExtensions(config, targets);
+		log.info("Extensions: " + extensions.toString());
+		boolean dateNeeded = arguments.getBegin() != null || arguments.getEnd() != null
+			|| !Collections.disjoint(configManager.getVariables(config, targets), ImportGroup.DATE_PROPERTIES);
+
+		// read source directory
+		Map<String, ImportLedger> ledgers = arguments.isIncremental() ? loadLedgers(config, targets) : null;
+		log.info("Reading source directory");
+		ImportSource finder = new ImportSource();
+		finder.setSourceConfig(source);
+		if (config.options != null) {
+			finder.setThreads(config.options.getMetadataThreads());
+			if (config.options.scanthreads != null) {
+				finder.setScanThreads(config.options.scanthreads);
+			}
+		}
+		finder.setExtensionFilter(extensions);
+		finder.setDcfNumberFilter(arguments.getMin(), arguments.getMax());
+		finder.setDateFilter(arguments.getBegin(), arguments.getEnd());
+		finder.setDateNeeded(dateNeeded);
+		if (ledgers != null) {
+			finder.setLedgerFilter(ledgers.values());
+		}
+		Map<String, ContentIndex> indexes = loadContentIndexes(config, targets);
+		FanOutCopyTask copyTask = createCopyTask(config, targets, assignments, ledgers, indexes);
+		copyTask.setJournal(journal);
+		if (stream && arguments.getPlanFile() == null) {
+			// copy the groups of each directory while the next directories are searched
+			int queueSize = (config.options != null && config.options.queuesize != null) ? config.options.queuesize : 1000;
+			ImportPipeline pipeline = new ImportPipeline(finder, queueSize);
+			pipeline.run(copyTask);
+			if (cache != null) {
+				cache.save();
+			}
+			log.info("Found " + pipeline.getCount() + " image groups.");
+			logExifSavings();
+			return finish(copyTask, journal, ledgers, indexes, arguments.getReportFile());
+		}
+
+		// if no EXIF data is needed at all, keep the groups in the order of their files
+		int budget = (config.options != null && config.options.groupbudget != null) ? config.options.groupbudget : 0;
+		GroupStore files = new GroupStore(dateNeeded, budget);
+		finder.findPhotos(files);
+		if (cache != null) {
+			cache.save();
+		}
+		log.info("Found " + files.size() + " image groups.");
+		logExifSavings();
+
+		if (arguments.getPlanFile() != null) {
+			// resolve all destinations, but do not copy anything
+			List<Transfer> transfers = copyTask.plan(files);
+			boolean written = true;
+			try {
+				ImportPlan.write(new File(arguments.getPlanFile()), transfers);
+				log.info("Wrote plan of " + transfers.size() + " files to " + arguments.getPlanFile());
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Unable to write plan " + arguments.getPlanFile(), e);
+				written = false;
+			}
+			ProgressLine.stop();
+			closeLedgers(ledgers, indexes);
+			files.close();
+			return written;
+		}
+
+		// copy files to all active targets at once
+		copyTask.copyFiles(files);
+		files.close();
+		return finish(copyTask, journal, ledgers, indexes, arguments.getReportFile());
+	}
+
+	/**
+	 * Reports how much of the source files was read to extract their EXIF data.
+	 */
+	private static void logExifSavings() {
+		if (ExifDateReader.getBytesTotal() > 0) {
+			long read = ExifDateReader.getBytesRead();
+			long total = ExifDateReader.getBytesTotal();
+			log.info(String.format("Read %d kB of %d kB for EXIF extraction (%.1f%% saved).", 
+				read / 1024, total / 1024, 100.0 * (total - read) / total));
+		}
+	}
+
+	/**
+	 * Removes the temporary files of an interrupted import, which is not resumed.
+	 */
+	private static void discardInterruptedImport(CopyJournal journal) {
+		if (journal.exists()) {
+			log.warning("Discarding the incomplete files of an interrupted import; use --resume to finish it instead.");
+			journal.discardPending();
+			journal.delete();
+		}
+	}
+
+	/**
+	 * Loads the import ledgers of all active targets.
+	 */
+	private static Map<String, ImportLedger> loadLedgers(Configuration config, List<String> targets) {
+		Map<String, ImportLedger> ledgers = new LinkedHashMap<String, ImportLedger>();
+		for (String target : targets) {
+			ImportLedger ledger = new ImportLedger(new File(config.targets.get(target).root, ImportLedger.FILE_NAME));
+			ledger.load();
+			ledgers.put(target, ledger);
+		}
+		return ledgers;
+	}
+
+	/**
+	 * Loads the content indexes of all active targets that detect duplicates.
+	 */
+	private static Map<String, ContentIndex> loadContentIndexes(Configuration config, List<String> targets) {
+		Map<String, ContentIndex> indexes = new LinkedHashMap<String, ContentIndex>();
+		for (String target : targets) {
+			if (config.targets.get(target).dedup != null) {
+				ContentIndex index = new ContentIndex(new File(config.targets.get(target).root));
+				index.load();
+				indexes.put(target, index);
+			}
+		}
+		return indexes;
+	}
+
+	/**
+	 * Creates the copy task that copies files to all active targets.
+	 */
+	private static FanOutCopyTask createCopyTask(Configuration config, List<String> targets, Map<String, String> assignments, 
+			Map<String, ImportLedger> ledgers, Map<String, ContentIndex> indexes) {
+		List<CopyTask> tasks = new ArrayList<CopyTask>();
+		for (String target : targets) {
+			CopyTask task = new CopyTask(target, config.targets.get(target), assignments);
+			if (ledgers != null) {
+				task.setLedger(ledgers.get(target));
+			}
+			task.setContentIndex(indexes.get(target));
+			tasks.add(task);
+		}
+		FanOutCopyTask copyTask = new FanOutCopyTask(tasks);
+		if (config.options != null && config.options.copythreads != null) {
+			copyTask.setThreads(config.options.copythreads);
+		}
+		if (config.options != null) {
+			copyTask.setSourceBandwidth(config.options.sourcebandwidth);
+			if (config.options.queuesize != null) {
+				copyTask.setCapacity(config.options.queuesize);
+			}
+		}
+		return copyTask;
+	}
+
+	/**
+	 * Writes the metrics of the import to a JSON file.
+	 */
+	private static void writeReport(File file) {
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("version", version);
+		report.putAll(Metrics.getReport());
+		try {
+			new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, report);
+			log.info("Wrote report to " + file);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to write report " + file, e);
+		}
+	}
+
+	/**
+	 * Reports the results of the copy task, closes the journal and the ledgers and saves the content 
+	 * indexes. The journal is deleted if all copies were completed. If a report file is given, the 
+	 * metrics of the import are written to it. All copies that did not match their source or could
+	 * not be verified are listed at the end.
+	 * @return false, if a file could not be copied, i.e., the journal still contains incomplete 
+	 * files, or a copy could not be verified or did not match its source
+	 */
+	private static boolean finish(FanOutCopyTask copyTask, CopyJournal journal, Map<String, ImportLedger> ledgers, 
+			Map<String, ContentIndex> indexes, String reportFile) {
+		ProgressLine.stop();
+		log.info(String.format("Copied %d files (%.1f MB) in %.1f s.", Metrics.getFilesCopied(), 
+			Metrics.getBytesCopied() / 1048576.0, Metrics.getElapsed() / 1000.0));
+		for (Map.Entry<String, Long> rate : Metrics.getTargetRates().entrySet()) {
+			log.info(String.format("Wrote target %s at %.1f MB/s.", rate.getKey(), rate.getValue() / 1048576.0));
+		}
+		for (Map.Entry<String, Long> throttle : Metrics.getThrottledTimes().entrySet()) {
+			log.info(String.format("Waited %.1f s for the bandwidth limit of %s.", throttle.getValue() / 1e9, throttle.getKey()));
+		}
+		if (Metrics.getFilesSynced() > 0) {
+			log.info(String.format("Synced %d files to disk in %.1f s.", Metrics.getFilesSynced(), 
+				Metrics.getSyncTime() / 1e9));
+		}
+		if (reportFile != null) {
+			writeReport(new File(reportFile));
+		}
+
+		int mismatches = 0, failures = 0;
+		List<Verification> problems = new ArrayList<Verification>();
+		for (Verification verification : copyTask.getVerifications()) {
+			if (verification.getStatus() == Verification.Status.mismatch) mismatches++;
+			if (verification.getStatus() == Verification.Status.failed) failures++;
+			if (verification.getStatus() != Verification.Status.ok) problems.add(verification);
+		}
+		if (copyTask.getVerifications().size() > 0) {
+			log.info("Verified " + copyTask.getVerifications().size() + " files: " + mismatches 
+				+ " checksum mismatches, " + failures + " failed verifications.");
+		}
+		for (Verification problem : problems) {
+			log.warning("Verification " + problem);
+		}
+
+		journal.close();
+		int incomplete = journal.exists() ? journal.readPending().size() : 0;
+		if (incomplete == 0) {
+			journal.delete();
+		} else {
+			log.warning(incomplete + " files could not be copied; use --resume to retry.");
+		}
+
+		closeLedgers(ledgers, indexes);
+		return problems.isEmpty() && incomplete == 0;
+	}
+
+	private static void closeLedgers(Map<String, ImportLedger> ledgers, Map<String, ContentIndex> indexes) {
+		if (ledgers != null) {
+			for (ImportLedger ledger : ledgers.values()) {
+				ledger.close();
+			}
+		}
+		for (ContentIndex index : indexes.values()) {
+			index.save();
+		}
+	}
 }
@@ -0,0 +1,108 @@
+package com.github.ythri.photoimport.cli;
+
+import java.io.PrintStream;
+
+import com.github.ythri.photoimport.core.Metrics;
+
+/**
+ * Shows the progress of an import in a single line on the console, which is redrawn periodically
+ * from the {@link Metrics}: the number of copied files and bytes, the throughput and, once the
+ * search of the source is complete, the estimated remaining time. The line is only shown if the
+ * program runs in an interactive console; it is removed before each log message is printed and
+ * redrawn afterwards.
+ */
+class ProgressLine {
+	private static final long INTERVAL = 500;
+	private static final PrintStream out = System.err;
+
+	private static Thread thread = null;
+	private static int length = 0;
+
+	/**
+	 * Starts redrawing the progress line, if the program runs in an interactive console.
+	 */
+	static synchronized void start() {
+		if (thread != null || System.console() == null) return;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(INTERVAL);
+						update();
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		}, "photoimport-progress");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops redrawing and removes the progress line.
+	 */
+	static void stop() {
+		Thread current;
+		synchronized (ProgressLine.class) {
+			current = thread;
+			thread = null;
+		}
+		if (current != null) {
+			current.interrupt();
+			try {
+				current.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		clear();
+	}
+
+	/**
+	 * Removes the progress line, e.g., before a log message is printed.
+	 */
+	static synchronized void clear() {
+		if (length > 0) {
+			out.print("\r" + spaces(length) + "\r");
+			out.flush();
+			length = 0;
+		}
+	}
+
+	private static synchronized void update() {
+		if (thread == null) return;
+		String line = format();
+		out.print("\r" + line + spaces(length - line.length()));
+		out.flush();
+		length = line.length();
+	}
+
+	private static String format() {
+		long files = Metrics.getFilesCopied();
+		long bytes = Metrics.getBytesCopied();
+		double seconds = Math.max(1, Metrics.getElapsed()) / 1000.0;
+		StringBuilder line = new StringBuilder("Copied ").append(files);
+		if (Metrics.getFilesFound() > 0) {
+			line.append(" of ").append(Metrics.getFilesFound()).append(Metrics.isScanComplete() ? "" : "+");
+		}
+		line.append(String.format(" files (%.1f", bytes / 1048576.0));
+		if (Metrics.getBytesFound() > 0) {
+			line.append(String.format(" of %.1f", Metrics.getBytesFound() / 1048576.0));
+		}
+		line.append(String.format(" MB), %.1f MB/s, %.1f files/s", bytes / 1048576.0 / seconds, files / seconds));
+		if (Metrics.isScanComplete() && bytes > 0 && Metrics.getBytesFound() > bytes) {
+			long remaining = (long) ((Metrics.getBytesFound() - bytes) * seconds / bytes);
+			line.append(String.format(", ETA %d:%02d:%02d", remaining / 3600, remaining / 60 % 60, remaining % 60));
+		}
+		return line.toString();
+	}
+
+	private static String spaces(int count) {
+		StringBuilder spaces = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			spaces.append(' ');
+		}
+		return spaces.toString();
+	}
+}
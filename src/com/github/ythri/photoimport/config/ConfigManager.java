@@ -126,6 +126,38 @@ public class ConfigManager {
 						}
 					}
 				}
+
+				// check duplicate handling
+				if (target.dedup != null && !target.dedup.equals("skip") && !target.dedup.equals("link")) {
+					log.warning("Target " + key + " specifies an unknown dedup mode " + target.dedup + "; use skip or link.");
+					valid = false;
+				}
+
+				// check verification sampling
+				if (target.verifypolicy == TargetConfig.VerifyPolicy.nth && (target.verifyevery == null || target.verifyevery < 1)) {
+					log.warning("Target " + key + " needs a positive verifyevery for verify policy nth.");
+					valid = false;
+				} else if (target.verifypolicy == TargetConfig.VerifyPolicy.random 
+						&& (target.verifypercent == null || target.verifypercent < 0 || target.verifypercent > 100)) {
+					log.warning("Target " + key + " needs a verifypercent between 0 and 100 for verify policy random.");
+					valid = false;
+				} else if (target.verifypolicy == TargetConfig.VerifyPolicy.size && target.verifysize == null) {
+					log.warning("Target " + key + " needs a verifysize for verify policy size.");
+					valid = false;
+				}
+
+				// check bandwidth limit
+				if (target.bandwidth != null && target.bandwidth < 1) {
+					log.warning("Target " + key + " specifies a bandwidth of " + target.bandwidth + "; use a positive number of bytes per second.");
+					valid = false;
+				}
+
+				// check sync batches
+				if (target.durability == TargetConfig.Durability.batch 
+						&& (target.syncfiles == null || target.syncfiles < 1 || target.syncbytes == null || target.syncbytes < 1)) {
+					log.warning("Target " + key + " needs positive syncfiles and syncbytes for durability mode batch.");
+					valid = false;
+				}
 			}
 		}
 		return valid;
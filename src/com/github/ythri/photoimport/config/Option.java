@@ -8,6 +8,14 @@ public class Option {
 	public List<String> readexiffrom = new ArrayList<String>();
 	public String locale;
 	public Suffix suffix;
+	public Integer metadatathreads;
+	public Integer scanthreads = 1;
+	public Integer copythreads = 1;
+	public Long sourcebandwidth;
+	public boolean metadatacache = true;
+	public Integer cacheruns = 10;
+	public Integer queuesize = 1000;
+	public Integer groupbudget = 0;
 
 	public Locale getLocale() {
 		if (locale == null) {
@@ -19,4 +27,16 @@ public class Option {
 			return new Locale(locale);
 		}
 	}
+
+	/**
+	 * Returns the number of threads used to read the metadata of the image groups. If no value 
+	 * is configured, one thread per available processor is used.
+	 * @return number of metadata threads, at least 1
+	 */
+	public int getMetadataThreads() {
+		if (metadatathreads == null) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return Math.max(1, metadatathreads);
+	}
 }
@@ -6,12 +6,28 @@ import java.util.Map;
 import java.util.HashMap;
 
 public class TargetConfig {
+	public enum CopyMode { auto, buffer, doublebuffer, mmap, copy, transfer }
+	public enum Durability { none, file, batch }
+	public enum VerifyPolicy { full, nth, random, size }
+
 	public String root;
 	public String path;
 	public String file;
 
 	public Boolean protect = false;
 	public Boolean verify = true;
+	public Boolean verifydirect = false;
+	public VerifyPolicy verifypolicy = VerifyPolicy.full;
+	public Integer verifyevery = 10;
+	public Integer verifypercent = 10;
+	public Long verifysize = 10L * 1024 * 1024;
+	public Integer threads = 1;
+	public Long bandwidth;
+	public String dedup;
+	public CopyMode copymode = CopyMode.auto;
+	public Durability durability = Durability.none;
+	public Integer syncfiles = 64;
+	public Long syncbytes = 256L * 1024 * 1024;
 
 	public Suffix suffix;
 	public List<String> extensions = new ArrayList<String>();
@@ -0,0 +1,263 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * This class keeps a persistent index of the contents of a target, which is used to find source
+ * files that already exist in the target under another name, e.g., because a card is imported
+ * twice or photos come back from other people. The index maps the size of each file in the target
+ * to its path relative to the root of the target, its modification time and, once it was needed,
+ * a fast checksum of its content.
+ * <p>
+ * A source file is looked up by its size first, which is known from the directory listing. Only
+ * if files of the same size exist, the fast checksums of the source and these files are computed,
+ * and a file with the same checksum is finally compared byte by byte, so a source file is never
+ * reported as duplicate unless its content is identical.
+ * <p>
+ * The index is built by walking the target once, when no index file exists. Afterwards, it is
+ * updated incrementally with the files copied by each import, and entries whose file was changed
+ * or removed are dropped when they are looked up. Files that were added to the target by other
+ * programs are only found after the index file was deleted. The files copied during a run are
+ * only looked up in later runs, such that the result of a lookup does not depend on the order in
+ * which the copies complete. All methods are thread-safe.
+ */
+public class ContentIndex {
+	private static final Logger log = Logger.getLogger(ContentIndex.class.getName());
+
+	/**
+	 * Name of the index file in the root directory of a target.
+	 */
+	public static final String FILE_NAME = ".photoimport-content";
+
+	private static final int MAGIC = 0x50494349;
+	private static final int VERSION = 1;
+	private static final long NO_CHECKSUM = -1L;
+
+	private final File root;
+	private final File file;
+	private final Map<Long, List<Entry>> entries = new HashMap<Long, List<Entry>>();
+	private final List<Entry> added = new ArrayList<Entry>();
+	private int count = 0;
+	private boolean changed = false;
+
+	private static class Entry {
+		final String path;
+		final long size;
+		final long modified;
+		long checksum;
+
+		Entry(String path, long size, long modified, long checksum) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+	}
+
+	/**
+	 * Creates the index of the given target root, which is stored in the file {@link #FILE_NAME}
+	 * in the root. The index is initially empty; use {@link #load()} to read or build it.
+	 * @param root root directory of the target
+	 */
+	public ContentIndex(File root) {
+		this.root = root;
+		this.file = new File(root, FILE_NAME);
+	}
+
+	/**
+	 * Loads the index from the index file. If the file does not exist or cannot be read, the
+	 * index is built by walking the target.
+	 */
+	public synchronized void load() {
+		entries.clear();
+		added.clear();
+		count = 0;
+		changed = false;
+		if (!file.exists()) {
+			rebuild();
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warning("Ignoring content index " + file + " with unknown format.");
+				in.close();
+				in = null;
+				rebuild();
+				return;
+			}
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				put(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong()));
+			}
+			log.info("Loaded " + count + " entries from content index " + file);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to read content index " + file, e);
+			rebuild();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Builds the index from the files in the target. Only the directory listings are read; the
+	 * checksums are computed when they are needed by a lookup.
+	 */
+	private void rebuild() {
+		log.info("Building content index of " + root);
+		entries.clear();
+		count = 0;
+		changed = true;
+		try {
+			Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+					boolean hidden = !dir.equals(root.toPath()) && dir.getFileName().toString().startsWith(".");
+					return hidden ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+					// skips the files of the program, like this index and temporary files
+					if (attributes.isRegularFile() && attributes.size() > 0 && !path.getFileName().toString().startsWith(".")) {
+						put(new Entry(root.toPath().relativize(path).toString(), attributes.size(),
+							attributes.lastModifiedTime().toMillis(), NO_CHECKSUM));
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e) {
+					log.log(Level.FINE, "Unable to index " + path, e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to build content index of " + root, e);
+		}
+		log.info("Indexed " + count + " files in " + root);
+	}
+
+	/**
+	 * Finds a file in the target with the same content as the given source file.
+	 * @param source source file to look up
+	 * @return file in the target with identical content, or {@code null} if there is none
+	 */
+	public synchronized File findDuplicate(File source) {
+		List<Entry> candidates = entries.get(source.length());
+		if (candidates == null) return null;
+		long checksum = NO_CHECKSUM;
+		for (Iterator<Entry> it = candidates.iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			File candidate = new File(root, entry.path);
+			if (candidate.length() != entry.size || candidate.lastModified() != entry.modified) {
+				// the file was changed or removed after it was indexed
+				it.remove();
+				count--;
+				changed = true;
+				continue;
+			}
+			if (checksum == NO_CHECKSUM) {
+				checksum = FileUtils.fastChecksum(source);
+				if (checksum == NO_CHECKSUM) return null;
+			}
+			if (entry.checksum == NO_CHECKSUM) {
+				entry.checksum = FileUtils.fastChecksum(candidate);
+				changed = true;
+			}
+			if (entry.checksum == checksum && FileUtils.contentEquals(source, candidate)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a file that was copied to the target. It is only looked up after the index was saved
+	 * and loaded again.
+	 * @param copy file in the target
+	 */
+	public synchronized void add(File copy) {
+		Path path = copy.toPath();
+		if (!path.startsWith(root.toPath())) return;
+		added.add(new Entry(root.toPath().relativize(path).toString(), copy.length(), copy.lastModified(), NO_CHECKSUM));
+	}
+
+	/**
+	 * Saves the index, including all added files, to the index file. The file is written to a
+	 * temporary file first and then atomically replaces the old index file.
+	 */
+	public synchronized void save() {
+		for (Entry entry : added) {
+			put(entry);
+			changed = true;
+		}
+		added.clear();
+		if (!changed) return;
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(count);
+			for (List<Entry> list : entries.values()) {
+				for (Entry entry : list) {
+					out.writeUTF(entry.path);
+					out.writeLong(entry.size);
+					out.writeLong(entry.modified);
+					out.writeLong(entry.checksum);
+				}
+			}
+			out.close();
+			out = null;
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			changed = false;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to write content index " + file, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	private void put(Entry entry) {
+		List<Entry> list = entries.get(entry.size);
+		if (list == null) {
+			list = new ArrayList<Entry>(1);
+			entries.put(entry.size, list);
+		}
+		list.add(entry);
+		count++;
+	}
+}
@@ -0,0 +1,266 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * This class implements the write-ahead journal of an import. Before the files of a group are
+ * copied, a line describing each planned copy is appended to the journal and synced to disk; after
+ * a copy was completed and renamed to its final name, another line marks it as done. If the import
+ * is interrupted, the journal thus contains all copies that may have been left incomplete, and
+ * {@link #readPending()} returns them, such that they can be finished without rescanning the
+ * source. The journal is deleted when an import completes.
+ * <p>
+ * Each line of the journal consists of tab-separated fields: {@code C}, the source, DCF number,
+ * DateTime, target name and destination for a planned copy, and {@code D}, the target name and
+ * destination for a completed copy. A DateTime of {@code -1} marks a group whose DateTime was not
+ * read. Every line ends with a final {@code .} field, such that a line
+ * that was only partially written before an interruption is recognized and ignored. Backslashes, 
+ * tabs and line breaks in the fields are escaped by {@link #escape(String)}.
+ * <p>
+ * The journal only protects the copies as far as the {@code durability} setting of their target
+ * does. With {@code file} or {@code batch}, a copy is synced to disk before it is marked as done.
+ * With the default {@code none}, the rename of a copy and its {@code D} line are not ordered with
+ * the data of the copy, so after a crash of the system, as opposed to an interrupted program, a 
+ * copy that is marked as done may be empty or incomplete, and it is not copied again on resume. 
+ * Targets whose copies must survive a power loss, e.g., on removable disks, should therefore use 
+ * {@code file} or {@code batch}.
+ */
+public class CopyJournal {
+	private static final Logger log = Logger.getLogger(CopyJournal.class.getName());
+
+	/**
+	 * Name of the journal file, which is stored next to the configuration file.
+	 */
+	public static final String FILE_NAME = "photoimport.journal";
+
+	private final File file;
+	private FileOutputStream stream = null;
+	private Writer out = null;
+
+	public CopyJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Checks whether the journal of an interrupted import exists.
+	 * @return true, if the journal file exists
+	 */
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Appends the planned copies to the journal and syncs the journal to disk.
+	 * @param transfers transfers that are about to be executed
+	 */
+	public synchronized void begin(List<Transfer> transfers) {
+		try {
+			open();
+			for (Transfer transfer : transfers) {
+				for (Map.Entry<String, File> destination : transfer.getDestinations().entrySet()) {
+					out.write("C\t" + escape(transfer.getSource().getPath()) + "\t" + transfer.getDcfNumber() + "\t"
+						+ ((transfer.getDateTime() == null) ? -1 : transfer.getDateTime().getTime()) + "\t" + escape(destination.getKey()) + "\t"
+						+ escape(destination.getValue().getPath()) + "\t.\n");
+				}
+			}
+			out.flush();
+			stream.getFD().sync();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to write journal " + file, e);
+		}
+	}
+
+	/**
+	 * Marks the copy to the given destination as completed.
+	 * @param target name of the target
+	 * @param destination destination of the completed copy
+	 */
+	public synchronized void done(String target, File destination) {
+		try {
+			open();
+			out.write("D\t" + escape(target) + "\t" + escape(destination.getPath()) + "\t.\n");
+			out.flush();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to write journal " + file, e);
+		}
+	}
+
+	/**
+	 * Reads all planned copies from the journal that were not marked as completed.
+	 * @return transfers that contain only the destinations of incomplete copies, in the order in
+	 * which they were planned
+	 */
+	public List<Transfer> readPending() {
+		Map<String, Transfer> transfers = new LinkedHashMap<String, Transfer>();
+		Set<String> done = new HashSet<String>();
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (!fields[fields.length - 1].equals(".")) {
+					// incomplete line of an interrupted import
+					continue;
+				}
+				if (fields.length == 7 && fields[0].equals("C")) {
+					String source = unescape(fields[1]);
+					Transfer transfer = transfers.get(source);
+					if (transfer == null) {
+						transfer = new Transfer(new File(source), Integer.parseInt(fields[2]), (fields[3].equals("-1")) ? null : new Date(Long.parseLong(fields[3])));
+						transfers.put(source, transfer);
+					}
+					transfer.addDestination(unescape(fields[4]), new File(unescape(fields[5])));
+				} else if (fields.length == 4 && fields[0].equals("D")) {
+					done.add(unescape(fields[1]) + "\t" + unescape(fields[2]));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			log.log(Level.WARNING, "Unable to read the complete journal " + file, e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		List<Transfer> pending = new ArrayList<Transfer>();
+		for (Transfer transfer : transfers.values()) {
+			Transfer remaining = new Transfer(transfer.getSource(), transfer.getDcfNumber(), transfer.getDateTime());
+			for (Map.Entry<String, File> destination : transfer.getDestinations().entrySet()) {
+				if (!done.contains(destination.getKey() + "\t" + destination.getValue().getPath())) {
+					remaining.addDestination(destination.getKey(), destination.getValue());
+				}
+			}
+			if (!remaining.getDestinations().isEmpty()) {
+				pending.add(remaining);
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * Removes the temporary files of all incomplete copies in the journal.
+	 */
+	public void discardPending() {
+		for (Transfer transfer : readPending()) {
+			for (File destination : transfer.getDestinations().values()) {
+				File temp = FileUtils.getTemporaryFile(destination);
+				if (temp.exists() && temp.delete()) {
+					log.info("Removed incomplete file " + temp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes and deletes the journal, e.g., after the import was completed.
+	 */
+	public synchronized void delete() {
+		close();
+		if (file.exists() && !file.delete()) {
+			log.warning("Unable to delete journal " + file);
+		}
+	}
+
+	/**
+	 * Closes the journal without deleting it.
+	 */
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to close journal " + file, e);
+			}
+			out = null;
+			stream = null;
+		}
+	}
+
+	/**
+	 * Escapes backslashes, tabs and line breaks in a field of a journal or plan line, such that the
+	 * field cannot be mistaken for the separator of the fields or lines.
+	 * @param field field, e.g., a path
+	 * @return escaped field
+	 */
+	static String escape(String field) {
+		StringBuilder escaped = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			switch (c) {
+				case '\\': escaped.append("\\\\"); break;
+				case '\t': escaped.append("\\t"); break;
+				case '\n': escaped.append("\\n"); break;
+				case '\r': escaped.append("\\r"); break;
+				default: escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Reverts {@link #escape(String)}.
+	 * @param field escaped field
+	 * @return original field
+	 */
+	static String unescape(String field) {
+		if (field.indexOf('\\') < 0) return field;
+		StringBuilder unescaped = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '\\' && i + 1 < field.length()) {
+				c = field.charAt(++i);
+				switch (c) {
+					case 't': c = '\t'; break;
+					case 'n': c = '\n'; break;
+					case 'r': c = '\r'; break;
+					default: break;
+				}
+			}
+			unescaped.append(c);
+		}
+		return unescaped.toString();
+	}
+
+	private void open() throws IOException {
+		if (out == null) {
+			boolean truncated = false;
+			if (file.length() > 0) {
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try {
+					in.seek(in.length() - 1);
+					truncated = in.read() != '\n';
+				} finally {
+					in.close();
+				}
+			}
+			stream = new FileOutputStream(file, true);
+			out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+			if (truncated) {
+				// terminate the incomplete last line of an interrupted import
+				out.write("\n");
+			}
+		}
+	}
+}
@@ -0,0 +1,466 @@
+package com.github.ythri.photoimport.core;
+
+import com.github.ythri.photoimport.config.TargetConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * A strategy to copy a source file to the temporary files of one or more destinations, which is
+ * used by the {@link FanOutCopyTask}. The strategies differ in how the data is moved:
+ * <ul>
+ * <li>{@link #BUFFER} reads each block of the source once into a buffer, which is written to all
+ * destinations. This has the least overhead and is used for small files.</li>
+ * <li>{@link #DOUBLE_BUFFER} works like {@link #BUFFER} with large buffers, but reads the next block
+ * asynchronously while the current block is written, such that reading and writing overlap.</li>
+ * <li>{@link #MAPPED} maps the source into memory in large windows, which are written to all
+ * destinations without copying them into a buffer. The JDK cannot unmap a window explicitly, it is
+ * only unmapped once it was garbage collected, so the windows of many large files could pile up
+ * in the address space and keep the files open. Therefore, only files smaller than
+ * {@link #MAPPED_LIMIT} are mapped; larger files are copied with {@link #DOUBLE_BUFFER}.</li>
+ * <li>{@link #COPY} copies the file with {@link Files#copy}, which lets the JDK and the operating
+ * system use their own copy offload, e.g., on the same file system.</li>
+ * <li>{@link #TRANSFER} copies the file with {@link FileChannel#transferTo}, which moves the data
+ * within the kernel.</li>
+ * </ul>
+ * The last two strategies copy the source to each destination separately and do not see the data,
+ * so if a checksum is needed, the source is read once more to compute it.
+ * <p>
+ * If a target does not set a copy mode, the strategy is selected by {@link #select}: small files
+ * are copied with {@link #BUFFER}; large files to a single destination without a checksum are
+ * copied by the kernel, with {@link #COPY} if the destination is on the same file store as the
+ * source and {@link #TRANSFER} otherwise; all other large files use {@link #DOUBLE_BUFFER}.
+ * Small files whose destinations are on several roots are not copied by a strategy, but read
+ * with {@link #readFully} and written to each root with {@link #writeFully}.
+ * <p>
+ * If the bandwidth of the source or a destination is limited by a {@link RateLimiter}, the data
+ * is read and written in chunks, each of which is acquired from the limiters first. Only
+ * {@link #COPY} cannot be split into chunks and acquires the whole file at once, so it is never
+ * selected automatically for limited devices.
+ */
+abstract class CopyStrategy {
+	private static final Logger log = Logger.getLogger(CopyStrategy.class.getName());
+
+	/**
+	 * Files of at least this size are copied with a strategy for large files.
+	 */
+	static final long LARGE_FILE = 32L * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int LARGE_BUFFER_SIZE = 8 * 1024 * 1024;
+	private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Files of at least this size are not mapped into memory by {@link #MAPPED}.
+	 */
+	static final long MAPPED_LIMIT = 256L * 1024 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private static final ThreadLocal<ByteBuffer[]> largeBuffers = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[] { ByteBuffer.allocateDirect(LARGE_BUFFER_SIZE), ByteBuffer.allocateDirect(LARGE_BUFFER_SIZE) };
+		}
+	};
+
+	/**
+	 * File stores of the accessed directories, since looking them up is expensive.
+	 */
+	private static final Map<Path, FileStore> fileStores = new ConcurrentHashMap<Path, FileStore>();
+
+	static final CopyStrategy BUFFER = new CopyStrategy("buffer") {
+		long copy(File source, RateLimiter reader, List<FanOutCopyTask.Destination> destinations, boolean checksum) throws IOException {
+			ByteBuffer buffer = buffers.get();
+			CRC32 crc = new CRC32();
+			FileChannel channel = null;
+			try {
+				channel = new FileInputStream(source).getChannel();
+				open(destinations);
+				long count = 0;
+				long size = channel.size();
+				while (count < size) {
+					buffer.clear();
+					int read = channel.read(buffer, count);
+					if (read < 0) break;
+					count += read;
+					acquire(reader, read);
+					buffer.flip();
+					if (checksum) {
+						crc.update(buffer.duplicate());
+					}
+					write(buffer, destinations);
+				}
+				if (count < size) {
+					throw new IOException("Unexpected end of file " + source);
+				}
+			} finally {
+				if (channel != null) {
+					channel.close();
+				}
+				close(destinations);
+			}
+			return checksum ? crc.getValue() : -1L;
+		}
+	};
+
+	static final CopyStrategy DOUBLE_BUFFER = new CopyStrategy("doublebuffer") {
+		long copy(File source, RateLimiter reader, List<FanOutCopyTask.Destination> destinations, boolean checksum) throws IOException {
+			ByteBuffer[] buffer = largeBuffers.get();
+			CRC32 crc = new CRC32();
+			AsynchronousFileChannel channel = null;
+			Future<Integer> pending = null;
+			try {
+				channel = AsynchronousFileChannel.open(source.toPath(), StandardOpenOption.READ);
+				open(destinations);
+				long size = channel.size();
+				long count = 0;
+				int current = 0;
+				buffer[current].clear();
+				pending = channel.read(buffer[current], 0);
+				while (pending != null) {
+					int read = await(pending);
+					pending = null;
+					if (read < 0) break;
+					count += read;
+					acquire(reader, read);
+
+					// start reading the next block before the current block is written
+					ByteBuffer block = buffer[current];
+					block.flip();
+					current = 1 - current;
+					if (count < size) {
+						buffer[current].clear();
+						pending = channel.read(buffer[current], count);
+					}
+					if (checksum) {
+						crc.update(block.duplicate());
+					}
+					write(block, destinations);
+				}
+				if (count < size) {
+					throw new IOException("Unexpected end of file " + source);
+				}
+			} finally {
+				if (pending != null) {
+					// wait for the read to finish before the buffer is reused
+					try {
+						await(pending);
+					} catch (IOException e) {}
+				}
+				if (channel != null) {
+					channel.close();
+				}
+				close(destinations);
+			}
+			return checksum ? crc.getValue() : -1L;
+		}
+	};
+
+	static final CopyStrategy MAPPED = new CopyStrategy("mmap") {
+		long copy(File source, RateLimiter reader, List<FanOutCopyTask.Destination> destinations, boolean checksum) throws IOException {
+			if (source.length() >= MAPPED_LIMIT) {
+				log.fine("Copying " + source + " with " + DOUBLE_BUFFER + ", as it is too large to be mapped");
+				return DOUBLE_BUFFER.copy(source, reader, destinations, checksum);
+			}
+			CRC32 crc = new CRC32();
+			FileChannel channel = null;
+			try {
+				channel = new FileInputStream(source).getChannel();
+				open(destinations);
+				long size = channel.size();
+				for (long position = 0; position < size; position += WINDOW_SIZE) {
+					MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+					if (reader != null) {
+						// the pages of the window are only read when they are accessed
+						while (window.hasRemaining()) {
+							ByteBuffer chunk = window.slice();
+							chunk.limit(Math.min(chunk.remaining(), CHUNK_SIZE));
+							window.position(window.position() + chunk.remaining());
+							acquire(reader, chunk.remaining());
+							if (checksum) {
+								crc.update(chunk.duplicate());
+							}
+							write(chunk, destinations);
+						}
+						continue;
+					}
+					if (checksum) {
+						crc.update(window.duplicate());
+					}
+					write(window, destinations);
+				}
+			} finally {
+				if (channel != null) {
+					channel.close();
+				}
+				close(destinations);
+			}
+			return checksum ? crc.getValue() : -1L;
+		}
+	};
+
+	static final CopyStrategy COPY = new CopyStrategy("copy") {
+		long copy(File source, RateLimiter reader, List<FanOutCopyTask.Destination> destinations, boolean checksum) throws IOException {
+			if (!source.canRead()) {
+				throw new IOException("Cannot read file " + source);
+			}
+			for (FanOutCopyTask.Destination to : destinations) {
+				if (to.failed) continue;
+				acquire(reader, source.length());
+				acquire(to.limiter, source.length());
+				try {
+					Files.copy(source.toPath(), to.temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					to.fail(e);
+				}
+			}
+			return checksum ? FileUtils.checksum(source) : -1L;
+		}
+	};
+
+	static final CopyStrategy TRANSFER = new CopyStrategy("transfer") {
+		long copy(File source, RateLimiter reader, List<FanOutCopyTask.Destination> destinations, boolean checksum) throws IOException {
+			FileChannel channel = null;
+			try {
+				channel = new FileInputStream(source).getChannel();
+				open(destinations);
+				long size = channel.size();
+				for (FanOutCopyTask.Destination to : destinations) {
+					if (to.failed) continue;
+					try {
+						long count = 0;
+						boolean limited = reader != null || to.limiter != null;
+						while (count < size) {
+							long chunk = limited ? Math.min(size - count, CHUNK_SIZE) : size - count;
+							acquire(reader, chunk);
+							acquire(to.limiter, chunk);
+							long transferred = channel.transferTo(count, chunk, to.channel);
+							if (transferred <= 0) {
+								throw new IOException("Unexpected end of file " + source);
+							}
+							count += transferred;
+						}
+					} catch (IOException e) {
+						to.fail(e);
+					}
+				}
+			} finally {
+				if (channel != null) {
+					channel.close();
+				}
+				close(destinations);
+			}
+			return checksum ? FileUtils.checksum(source) : -1L;
+		}
+	};
+
+	private final String name;
+
+	private CopyStrategy(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Copies the source file to the temporary files of the given destinations. Destinations that
+	 * cannot be written are marked as failed.
+	 * @param source source file
+	 * @param reader limiter of the source device, or {@code null} if it is not limited
+	 * @param destinations destinations that have not failed yet
+	 * @param checksum whether to compute the checksum of the source file
+	 * @return CRC checksum of the source file, or -1 if it was not computed
+	 * @throws IOException if the source file cannot be read
+	 */
+	abstract long copy(File source, RateLimiter reader, List<FanOutCopyTask.Destination> destinations, boolean checksum) throws IOException;
+
+	/**
+	 * Returns the strategy of the given copy mode of a target.
+	 * @param mode copy mode of a target
+	 * @return copy strategy, or {@code null} if the strategy should be selected automatically
+	 */
+	static CopyStrategy get(TargetConfig.CopyMode mode) {
+		if (mode == null) return null;
+		switch (mode) {
+			case buffer: return BUFFER;
+			case doublebuffer: return DOUBLE_BUFFER;
+			case mmap: return MAPPED;
+			case copy: return COPY;
+			case transfer: return TRANSFER;
+			default: return null;
+		}
+	}
+
+	/**
+	 * Selects the strategy for copying the source file to the given destinations, based on the
+	 * size of the file, the number of destinations, their file stores and bandwidth limits.
+	 * @param source source file
+	 * @param reader limiter of the source device, or {@code null} if it is not limited
+	 * @param destinations destinations of the source file
+	 * @param checksum whether the checksum of the source file is needed
+	 * @return copy strategy
+	 */
+	static CopyStrategy select(File source, RateLimiter reader, List<FanOutCopyTask.Destination> destinations, boolean checksum) {
+		if (source.length() < LARGE_FILE) return BUFFER;
+		if (destinations.size() > 1 || checksum) return DOUBLE_BUFFER;
+		if (reader != null || destinations.get(0).limiter != null) return TRANSFER;
+		FileStore sourceStore = getFileStore(source.getParentFile());
+		FileStore targetStore = getFileStore(destinations.get(0).file.getParentFile());
+		return (sourceStore != null && sourceStore.equals(targetStore)) ? COPY : TRANSFER;
+	}
+
+	/**
+	 * Reads a small source file into a buffer, which can be written to the destinations of several
+	 * roots independently with {@link #writeFully}.
+	 * @param source source file, which is smaller than {@link #LARGE_FILE}
+	 * @param reader limiter of the source device, or {@code null} if it is not limited
+	 * @return buffer with the content of the file
+	 * @throws IOException if the source file cannot be read
+	 */
+	static ByteBuffer readFully(File source, RateLimiter reader) throws IOException {
+		FileChannel channel = new FileInputStream(source).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining()) {
+				ByteBuffer chunk = buffer.duplicate();
+				chunk.limit(chunk.position() + Math.min(chunk.remaining(), CHUNK_SIZE));
+				int read = channel.read(chunk, chunk.position());
+				if (read < 0) {
+					throw new IOException("Unexpected end of file " + source);
+				}
+				acquire(reader, read);
+				buffer.position(chunk.position());
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes a buffer read by {@link #readFully} to the temporary files of the given destinations.
+	 * Destinations that cannot be written are marked as failed.
+	 * @param buffer content of the source file, which is not changed
+	 * @param destinations destinations that have not failed yet
+	 */
+	static void writeFully(ByteBuffer buffer, List<FanOutCopyTask.Destination> destinations) {
+		try {
+			open(destinations);
+			write(buffer.duplicate(), destinations);
+		} finally {
+			close(destinations);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	private static FileStore getFileStore(File directory) {
+		Path path = directory.toPath();
+		FileStore store = fileStores.get(path);
+		if (store == null) {
+			try {
+				store = Files.getFileStore(path);
+				fileStores.put(path, store);
+			} catch (IOException e) {
+				log.log(Level.FINE, "Unable to determine the file store of " + directory, e);
+			}
+		}
+		return store;
+	}
+
+	private static void open(List<FanOutCopyTask.Destination> destinations) {
+		for (FanOutCopyTask.Destination to : destinations) {
+			if (to.failed) continue;
+			try {
+				to.channel = new FileOutputStream(to.temp).getChannel();
+			} catch (IOException e) {
+				to.fail(e);
+			}
+		}
+	}
+
+	private static void acquire(RateLimiter limiter, long bytes) {
+		if (limiter != null) {
+			limiter.acquire(bytes);
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer to all destinations that have not failed. The
+	 * bytes are written to a limited destination in chunks.
+	 */
+	private static void write(ByteBuffer buffer, List<FanOutCopyTask.Destination> destinations) {
+		for (FanOutCopyTask.Destination to : destinations) {
+			if (to.failed) continue;
+			try {
+				ByteBuffer view = buffer.duplicate();
+				while (view.hasRemaining()) {
+					ByteBuffer part = view.duplicate();
+					if (to.limiter != null) {
+						part.limit(part.position() + Math.min(part.remaining(), CHUNK_SIZE));
+						to.limiter.acquire(part.remaining());
+					}
+					while (part.hasRemaining()) {
+						to.channel.write(part);
+					}
+					view.position(part.position());
+				}
+			} catch (IOException e) {
+				to.fail(e);
+			}
+		}
+	}
+
+	private static void close(List<FanOutCopyTask.Destination> destinations) {
+		for (FanOutCopyTask.Destination to : destinations) {
+			if (to.channel != null) {
+				try {
+					to.channel.close();
+				} catch (IOException e) {
+					to.fail(e);
+				}
+				to.channel = null;
+			}
+		}
+	}
+
+	private static int await(Future<Integer> read) throws IOException {
+		try {
+			return read.get();
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading", e);
+		}
+	}
+}
@@ -3,108 +3,215 @@ package com.github.ythri.photoimport.core;
 import com.github.ythri.photoimport.config.TargetConfig;
 
 import java.util.Map;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.logging.Logger;
-import java.util.logging.Level;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
 
+/**
+ * This class resolves the destinations of image groups for a single target. It formats the path
+ * and file name templates of the target, creates the needed directories and finds a suffix, such
+ * that none of the files of a group overwrites an existing file. The actual copying is done by the
+ * {@link FanOutCopyTask}, which copies each source file to the destinations of all active targets
+ * at once.
+ * <p>
+ * If the target sets a {@code dedup} mode and a {@link ContentIndex} is set, source files whose
+ * content already exists in the target are either skipped ({@code skip}) or linked to the existing
+ * file ({@code link}) instead of being copied again.
+ * <p>
+ * The destinations are resolved by a single thread, but a copy worker may ask for a new name of a
+ * destination that unexpectedly exists, so all methods that access the {@link TargetIndex} are
+ * synchronized.
+ */
 public class CopyTask {
 	private static final Logger log = Logger.getLogger(CopyTask.class.getName());
 
-	private PathFormatter formatter;
+	private String name;
+	private PathFormatter.Template pathTemplate;
+	private PathFormatter.Template fileTemplate;
 	private TargetConfig target;
+	private ImportLedger ledger = null;
+	private TargetIndex index = new TargetIndex();
+	private ContentIndex contentIndex = null;
+	private Map<File, File> links = new HashMap<File, File>();
 
-	public CopyTask(TargetConfig target, Map<String, String> variables) {
+	public CopyTask(String name, TargetConfig target, Map<String, String> variables) {
+		this.name = name;
 		this.target = target;
-		formatter = new PathFormatter(variables);
+		PathFormatter formatter = new PathFormatter(variables);
+		pathTemplate = formatter.compile((target.path == null) ? "" : target.path);
+		fileTemplate = formatter.compile(target.file);
 	}
 
-	public void copyFiles(List<ImportGroup> files) {
-		for (ImportGroup group : files) {
-			File path = new File(target.root, formatter.format(target.path, group));
-			String file = formatter.format(target.file, group);
-			if (!path.exists()) {
-				log.info("Creating directory " + path.toString());
-				path.mkdirs();
-			}
+	/**
+	 * Sets the import ledger of the target. Groups whose files are all contained in the ledger
+	 * are skipped, and each copied file is recorded in the ledger.
+	 */
+	public void setLedger(ImportLedger ledger) {
+		this.ledger = ledger;
+	}
 
-			// find common suffix for all files
-			int suffix = (target.suffix.alwaysAppend) ? 1 : 0;
-			while (!checkIfFilenameIsFree(path, file + target.suffix.format(suffix), group, target.subfolders)) {
-				suffix++;
-			}
+	/**
+	 * Sets the content index of the target, which is used to find duplicates of the source files
+	 * if the target sets a {@code dedup} mode. Each copied file is added to the index.
+	 */
+	public void setContentIndex(ContentIndex contentIndex) {
+		this.contentIndex = contentIndex;
+	}
+
+	/**
+	 * Enables the dry-run mode, in which destinations are resolved without creating any 
+	 * directories, e.g., while an import is planned.
+	 */
+	public void setDryRun(boolean dryRun) {
+		index.setDryRun(dryRun);
+	}
 
-			// copy files
+	/**
+	 * Creates the given directory in this target, unless it already exists, e.g., for a 
+	 * destination that was resolved in an earlier run.
+	 * @param directory directory to create
+	 */
+	public synchronized void mkdirs(File directory) {
+		index.mkdirs(directory);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public TargetConfig getTarget() {
+		return target;
+	}
+
+	/**
+	 * Resolves the destination of each file of the group in this target, creating all needed
+	 * directories. The destinations are added to the {@link TargetIndex} of the target, such that 
+	 * later groups do not get the same destinations even if the files have not been copied yet.
+	 * @param group image group to resolve
+	 * @return map from the files of the group to their destinations, in the order of the files in
+	 * the group; empty, if the group was already imported to this target. Files that already exist
+	 * in the target and are skipped have no destination.
+	 */
+	public synchronized Map<File, File> prepare(ImportGroup group) {
+		Map<File, File> destinations = new LinkedHashMap<File, File>();
+		links.clear();
+		if (ledger != null && ledger.containsAll(group.getFiles())) {
+			log.info("Skipping already imported group " + group.getProperty("filename"));
+			return destinations;
+		}
+		Map<File, File> duplicates = findDuplicates(group);
+		boolean skip = "skip".equals(target.dedup);
+		if (skip && duplicates.size() == group.getFiles().size()) {
+			log.info("Skipping group " + group.getProperty("filename") + ", whose files already exist in target " + name);
 			for (File from : group.getFiles()) {
-				String ext = FileUtils.getExtension(from).toLowerCase();
-				File fullPath = path;
-				if (target.subfolders.containsKey(ext)) {
-					fullPath = new File(path, target.subfolders.get(ext));
-					if (!fullPath.exists()) {
-						log.info("Creating directory " + fullPath.toString());
-						fullPath.mkdirs();
-					}
-				}
-				File to = new File(fullPath, file + target.suffix.format(suffix) + "." + FileUtils.getExtension(from));
-				log.info("Copying file " + from.toString() + " to " + to.toString());
-				try {
-					copyFile(from, to);
-					if (target.verify) {
-						long c1 = FileUtils.checksum(from);
-						long c2 = FileUtils.checksum(to);
-						if (c1 == -1L || c2 == -1L) {
-							log.warning("Could not verify files " + from + " and " + to + " as the checksum computation failed");
-						} else if (c1 != c2) {
-							log.warning("Files " + from + " and " + to + " have different checksums");
-						}
-					}
-				} catch (IOException e) {
-					log.log(Level.WARNING, "Could not move file", e);
-				}
+				Metrics.deduplicated(name, from.length());
 			}
+			return destinations;
+		}
+		File path = new File(target.root, pathTemplate.format(group));
+		String file = fileTemplate.format(group);
+		index.mkdirs(path);
+
+		// find common suffix for all files
+		int suffix = (target.suffix.alwaysAppend) ? 1 : 0;
+		while (!checkIfFilenameIsFree(path, file + target.suffix.format(suffix), group, target.subfolders)) {
+			suffix++;
 		}
-	}
 
-	private boolean checkIfFilenameIsFree(File path, String fileName, ImportGroup group, Map<String, String> subfolders) {
 		for (File from : group.getFiles()) {
+			if (duplicates.containsKey(from)) {
+				if (skip) {
+					log.info("Skipping file " + from + ", which already exists as " + duplicates.get(from));
+					Metrics.deduplicated(name, from.length());
+					continue;
+				}
+				links.put(from, duplicates.get(from));
+			}
 			String ext = FileUtils.getExtension(from).toLowerCase();
-			File to = new File(subfolders.containsKey(ext) ? new File(path, subfolders.get(ext)) : path, fileName + "." + FileUtils.getExtension(from));
-			if (to.exists()) {
-				return false;
+			File fullPath = path;
+			if (target.subfolders.containsKey(ext)) {
+				fullPath = new File(path, target.subfolders.get(ext));
+				index.mkdirs(fullPath);
 			}
+			File to = new File(fullPath, file + target.suffix.format(suffix) + "." + FileUtils.getExtension(from));
+			destinations.put(from, to);
+			index.add(to);
 		}
-		return true;
+		return destinations;
 	}
 
-	private void copyFile(File sourceFile, File destFile) throws IOException {
-		if (destFile.exists()) {
-			log.severe(destFile.toString() + " already exists, should not occur; skipping copy.");
-			return;
+	/**
+	 * Finds a new name for a destination that already exists, e.g., because another program
+	 * created a file of the same name after the destination was resolved, or because the target
+	 * does not distinguish the case of names. The suffix of the target is appended to the name of
+	 * the destination, starting with 1, until the name is free. The new name is reserved in the
+	 * index of the target.
+	 * @param to destination that already exists
+	 * @return free destination in the same directory
+	 */
+	public synchronized File resolveConflict(File to) {
+		String name = FileUtils.getBaseName(to);
+		String extension = FileUtils.getExtension(to);
+		for (int suffix = 1; ; suffix++) {
+			File candidate = new File(to.getParentFile(), name + target.suffix.format(suffix) + "." + extension);
+			if (!index.exists(candidate) && !candidate.exists()) {
+				index.add(candidate);
+				return candidate;
+			}
 		}
-		destFile.createNewFile();
-
-		FileChannel source = null;
-		FileChannel destination = null;
-		try {
-			source = new FileInputStream(sourceFile).getChannel();
-			destination = new FileOutputStream(destFile).getChannel();
-			// destination.transferFrom(source, 0, source.size());
-			long count = 0;
-			long size = source.size();
-			while((count += destination.transferFrom(source, count, size-count))<size);
+	}
+
+	/**
+	 * Returns the existing file in this target, to which a file of the last prepared group is
+	 * linked instead of being copied.
+	 * @param from source file of the last prepared group
+	 * @return existing file with the same content, or {@code null} if the file is copied
+	 */
+	public File getLink(File from) {
+		return links.get(from);
+	}
+
+	/**
+	 * Records that a file was successfully copied to this target.
+	 * @param transfer transfer of the source file
+	 * @param to destination in this target
+	 */
+	public void copied(Transfer transfer, File to) {
+		if (ledger != null) {
+			ledger.record(transfer, to);
+		}
+		if (contentIndex != null) {
+			contentIndex.add(to);
 		}
-		finally {
-			if(source != null) {
-				source.close();
+	}
+
+	/**
+	 * Finds the files of the group whose content already exists in this target.
+	 * @return map from the source files to the existing files; empty, if duplicates are not 
+	 * detected for this target
+	 */
+	private Map<File, File> findDuplicates(ImportGroup group) {
+		Map<File, File> duplicates = new HashMap<File, File>();
+		if (contentIndex == null || target.dedup == null) return duplicates;
+		for (File from : group.getFiles()) {
+			File existing = contentIndex.findDuplicate(from);
+			if (existing != null) {
+				duplicates.put(from, existing);
 			}
-			if(destination != null) {
-				destination.close();
+		}
+		return duplicates;
+	}
+
+	private boolean checkIfFilenameIsFree(File path, String fileName, ImportGroup group, Map<String, String> subfolders) {
+		for (File from : group.getFiles()) {
+			String ext = FileUtils.getExtension(from).toLowerCase();
+			File to = new File(subfolders.containsKey(ext) ? new File(path, subfolders.get(ext)) : path, fileName + "." + FileUtils.getExtension(from));
+			if (index.exists(to)) {
+				return false;
 			}
 		}
+		return true;
 	}
 }
@@ -0,0 +1,206 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * This class provides a fast path for reading the capture date of an image. Instead of handing the
+ * whole file to the metadata-extractor library, it reads only a bounded prefix of the file and
+ * parses just enough of the JPEG segments and the TIFF structure (which is also used by raw formats
+ * like CR2) to find the EXIF tags {@code DateTimeOriginal} and {@code DateTimeDigitized}. If the
+ * tags are not contained in the prefix, the method returns {@code null} and the caller is expected
+ * to fall back to a full metadata read.
+ * <p>
+ * The class keeps track of the number of bytes read from the examined files, such that the savings
+ * compared to reading the files completely can be reported. This class is static and cannot be
+ * instantiated.
+ */
+public final class ExifDateReader {
+	private static final Logger log = Logger.getLogger(ExifDateReader.class.getName());
+
+	/**
+	 * Maximal number of bytes read from the start of each file. The EXIF segment of a JPEG file is
+	 * limited to 64 KiB and located at the start of the file, and raw files store their IFDs in front
+	 * of the image data.
+	 */
+	public static final int PREFIX_SIZE = 128 * 1024;
+
+	private static final int TAG_EXIF_OFFSET = 0x8769;
+	private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+	private static final int TAG_DATETIME_DIGITIZED = 0x9004;
+	private static final int TYPE_ASCII = 2;
+	private static final int DATE_LENGTH = 19;
+
+	private static final AtomicLong bytesRead = new AtomicLong();
+	private static final AtomicLong bytesTotal = new AtomicLong();
+
+	private ExifDateReader() {}
+
+	/**
+	 * Reads the capture date of the given file from a bounded prefix of the file. Supported are JPEG
+	 * files and all TIFF based files, like TIF, CR2 or NEF.
+	 * @param file file to read the capture date from
+	 * @return the {@code DateTimeOriginal} of the file, or its {@code DateTimeDigitized} if the
+	 * former is missing; {@code null} if neither could be found in the prefix of the file
+	 */
+	public static Date readDate(File file) {
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				buffer = ByteBuffer.allocate((int) Math.min(size, PREFIX_SIZE));
+				while (buffer.hasRemaining() && channel.read(buffer) != -1);
+				buffer.flip();
+				bytesRead.addAndGet(buffer.limit());
+				bytesTotal.addAndGet(size);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not read prefix of file " + file.toString(), e);
+			return null;
+		}
+
+		try {
+			int tiff = findTiffHeader(buffer);
+			return (tiff < 0) ? null : readTiffDate(buffer, tiff);
+		} catch (IndexOutOfBoundsException e) {
+			// offsets point outside of the prefix
+			return null;
+		}
+	}
+
+	/**
+	 * Records that the given file had to be read completely, since the prefix did not contain the
+	 * capture date. The prefix was already counted by {@link #readDate(File)}, so only the bytes 
+	 * after it are added.
+	 * @param file file that was read by the full metadata reader
+	 */
+	public static void recordFullRead(File file) {
+		bytesRead.addAndGet(Math.max(0, file.length() - PREFIX_SIZE));
+	}
+
+	/**
+	 * Resets the counters of the read and examined bytes, e.g., before an import is started.
+	 */
+	public static void reset() {
+		bytesRead.set(0);
+		bytesTotal.set(0);
+	}
+
+	/**
+	 * Returns the number of bytes that were read from all examined files so far, including the
+	 * files that had to be read completely.
+	 * @return number of bytes read
+	 */
+	public static long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Returns the total size of all examined files so far, i.e., the number of bytes that would
+	 * have been read by reading each file completely.
+	 * @return total size of the examined files
+	 */
+	public static long getBytesTotal() {
+		return bytesTotal.get();
+	}
+
+	/**
+	 * Returns the position of the TIFF header in the buffer, or -1 if the buffer contains neither a
+	 * TIFF file nor a JPEG file with an EXIF segment.
+	 */
+	private static int findTiffHeader(ByteBuffer buffer) {
+		if (buffer.limit() < 8) return -1;
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		int magic = buffer.getShort(0) & 0xFFFF;
+		if (magic == 0x4949 || magic == 0x4D4D) {
+			return 0;
+		}
+		if (magic != 0xFFD8) return -1;
+
+		int position = 2;
+		while (position + 4 <= buffer.limit()) {
+			if ((buffer.get(position) & 0xFF) != 0xFF) return -1;
+			int marker = buffer.get(position + 1) & 0xFF;
+			if (marker == 0xFF) {
+				// fill byte
+				position++;
+				continue;
+			}
+			if (marker == 0xDA || marker == 0xD9) {
+				// start of scan or end of image: no more metadata segments
+				return -1;
+			}
+			int length = buffer.getShort(position + 2) & 0xFFFF;
+			if (marker == 0xE1 && position + 10 <= buffer.limit()
+					&& buffer.getInt(position + 4) == 0x45786966 && buffer.getShort(position + 8) == 0) {
+				// APP1 segment starting with "Exif\0\0"
+				return position + 10;
+			}
+			position += 2 + length;
+		}
+		return -1;
+	}
+
+	private static Date readTiffDate(ByteBuffer buffer, int tiff) {
+		buffer.order((buffer.getShort(tiff) == 0x4949) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		if (buffer.getShort(tiff + 2) != 42) return null;
+
+		int exifIfd = findTag(buffer, tiff, tiff + buffer.getInt(tiff + 4), TAG_EXIF_OFFSET);
+		if (exifIfd < 0) return null;
+		int exif = tiff + buffer.getInt(exifIfd + 8);
+
+		Date date = readDateTag(buffer, tiff, findTag(buffer, tiff, exif, TAG_DATETIME_ORIGINAL));
+		if (date == null) {
+			date = readDateTag(buffer, tiff, findTag(buffer, tiff, exif, TAG_DATETIME_DIGITIZED));
+		}
+		return date;
+	}
+
+	/**
+	 * Returns the position of the IFD entry with the given tag, or -1 if the IFD has no such entry.
+	 */
+	private static int findTag(ByteBuffer buffer, int tiff, int ifd, int tag) {
+		if (ifd <= tiff) return -1;
+		int entries = buffer.getShort(ifd) & 0xFFFF;
+		for (int i = 0; i < entries; i++) {
+			int entry = ifd + 2 + 12 * i;
+			if ((buffer.getShort(entry) & 0xFFFF) == tag) {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	private static Date readDateTag(ByteBuffer buffer, int tiff, int entry) {
+		if (entry < 0) return null;
+		if (buffer.getShort(entry + 2) != TYPE_ASCII || buffer.getInt(entry + 4) < DATE_LENGTH) return null;
+		int offset = tiff + buffer.getInt(entry + 8);
+		byte[] value = new byte[DATE_LENGTH];
+		for (int i = 0; i < DATE_LENGTH; i++) {
+			value[i] = buffer.get(offset + i);
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
+		format.setLenient(false);
+		try {
+			return format.parse(new String(value, StandardCharsets.US_ASCII));
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+}
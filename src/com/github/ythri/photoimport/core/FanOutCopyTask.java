@@ -0,0 +1,1102 @@
+package com.github.ythri.photoimport.core;
+
+import com.github.ythri.photoimport.config.TargetConfig;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+
+/**
+ * This class copies image groups to all active targets at once. The destinations are resolved
+ * separately by the {@link CopyTask} of each target, but each source file is read only once into a
+ * shared buffer, which is then written to the destinations in all targets. If writing to one
+ * destination fails, the other destinations are still completed.
+ * <p>
+ * If a target verifies its files, the checksum of the source is computed from the same bytes that
+ * are written, so only the copies need to be read back. The copies are read back by a separate
+ * verification stage with one worker per target, which is fed with the completed copies, such that
+ * verifying a file overlaps with copying the next files. Which copies are verified is decided by
+ * the {@link VerificationPolicy} of the target. The result of each verification is kept as a
+ * {@link Verification} record. A verified copy is only recorded as complete in the journal, the
+ * ledger and the content index once its checksum matched; a copy with another checksum is deleted,
+ * such that a resumed import copies it again.
+ * <p>
+ * The copies are executed by a pool of workers for the source device, whose size is set by
+ * {@link #setThreads(int)}. Additionally, the number of files written concurrently to each target
+ * root is limited by the lowest {@code threads} setting of the targets on the root. Each root has
+ * a writer with that many workers: a small file whose destinations are on several roots is read
+ * into memory once and handed to the writers of its roots, which write it independently of each
+ * other, so a fast disk is used at its own parallelism while a slower root is still writing. The
+ * files kept in memory are limited to {@value #SHARED_BYTES} bytes, and a copy worker waits before
+ * it reads the next file if the slow writers fall that far behind. Large files, e.g., videos, and
+ * files to targets that set a {@code copymode} are not kept in memory, but written to the
+ * destinations on all roots at once by the copy worker, which then waits until all of their roots
+ * have a free slot. The destinations of all groups are still resolved one after another in the
+ * order of the groups, so suffixes and output names do not depend on the number of workers.
+ * <p>
+ * At most {@link #setCapacity(int) capacity} groups are copied at once: the destinations of the
+ * next group are only resolved once the copies of an earlier group are complete, so the copies that
+ * are waiting for a worker never pile up in memory. If the groups are produced while they are
+ * copied, e.g., by an {@link ImportPipeline}, the producer has to wait as well.
+ * <p>
+ * Each file is first written to a temporary file, which is moved to its final name only once it
+ * is complete. The final name is created as a hard link to the temporary file, which fails if a
+ * file of that name exists, so a file that was created by another program after the destination
+ * was resolved is never overwritten and no destination has to be checked before it is written;
+ * instead, the file is moved to a new name. On file systems without hard links, the temporary
+ * file is renamed, which also refuses to replace an existing file. If a {@link CopyJournal} is
+ * set, all copies of a group are recorded in the journal before they are started, such that an
+ * interrupted import can be resumed.
+ * <p>
+ * Destinations of source files that already exist in a target with {@code dedup} mode
+ * {@code link} are created as hard links to the existing files. If a link cannot be created, e.g.,
+ * because the file system does not support hard links, the source file is copied instead.
+ * <p>
+ * The data is moved by a {@link CopyStrategy}, which is selected for each file from its size and
+ * its destinations, unless a target sets a {@code copymode}. Destinations whose targets use
+ * different strategies are copied separately, but the source is still read at most once for the
+ * destinations with the same strategy.
+ * <p>
+ * The {@code durability} setting of a target controls whether its files are synced to disk. With
+ * {@code file}, each file is synced before it is renamed, and its directory after it was renamed.
+ * With {@code batch}, the written files are kept under their temporary names until the batch
+ * reaches {@code syncfiles} files or {@code syncbytes} bytes and an image group is complete; then
+ * all files of the batch are synced, renamed and their directories synced once. A file is only
+ * recorded as complete in the journal and the ledger after it was synced, such that a resumed
+ * import copies all files that may have been lost.
+ * <p>
+ * The bandwidth of the source and of each target root can be limited with a {@link RateLimiter},
+ * e.g., to keep a backup on a network drive from saturating the network. Targets with the same
+ * root share a limiter. Since a file that is written to several destinations at once is only
+ * complete once its slowest destination is written, the destinations of limited targets are not
+ * part of the shared copy: each limited root has its own writer, which copies the files of each
+ * group in a separate pass after they were queued by the copy workers. Thus, a throttled backup
+ * does not slow down the other targets, but the source files are read once more for each limited
+ * root, and the limited targets may still be written after all other targets are complete.
+ */
+public class FanOutCopyTask {
+	private static final Logger log = Logger.getLogger(FanOutCopyTask.class.getName());
+
+	/**
+	 * Maximal number of bytes of small source files that are kept in memory until they are
+	 * written to all of their roots.
+	 */
+	private static final int SHARED_BYTES = 256 * 1024 * 1024;
+
+	private Map<String, CopyTask> tasks = new LinkedHashMap<String, CopyTask>();
+	private Map<String, Semaphore> writers = new HashMap<String, Semaphore>();
+	private Map<String, ExecutorService> rootWriters = new HashMap<String, ExecutorService>();
+	private Semaphore shared = new Semaphore(SHARED_BYTES);
+	private int threads = 1;
+	private int capacity = 1000;
+	private Semaphore groups = null;
+	private CopyJournal journal = null;
+	private List<Verification> verifications = Collections.synchronizedList(new ArrayList<Verification>());
+	private Map<CopyTask, SyncBatch> batches = new LinkedHashMap<CopyTask, SyncBatch>();
+	private Map<CopyTask, VerificationPolicy> policies = new HashMap<CopyTask, VerificationPolicy>();
+	private Map<CopyTask, ExecutorService> verifiers = new HashMap<CopyTask, ExecutorService>();
+	private Map<CopyTask, RateLimiter> limiters = new HashMap<CopyTask, RateLimiter>();
+	private Map<RateLimiter, ExecutorService> limitedWriters = new HashMap<RateLimiter, ExecutorService>();
+	private RateLimiter sourceLimiter = null;
+
+	/**
+	 * A single destination of a source file.
+	 */
+	static class Destination {
+		final CopyTask task;
+		/** final name of the destination, which changes if the destination has to be moved */
+		File file;
+		final File temp;
+		final RateLimiter limiter;
+		FileChannel channel = null;
+		boolean failed = false;
+		boolean verify = false;
+		long checksum = -1L;
+
+		Destination(CopyTask task, File file, RateLimiter limiter) {
+			this.task = task;
+			this.file = file;
+			this.temp = FileUtils.getTemporaryFile(file);
+			this.limiter = limiter;
+		}
+
+		void fail(IOException e) {
+			log.log(Level.WARNING, "Could not write file " + file, e);
+			failed = true;
+		}
+	}
+
+	/**
+	 * The destinations of a source file that are written in one pass.
+	 */
+	private static class Pass {
+		final Transfer transfer;
+		final List<Destination> targets = new ArrayList<Destination>();
+		/** whether the source file is counted as copied by this pass */
+		boolean count = false;
+		Progress progress = null;
+
+		Pass(Transfer transfer) {
+			this.transfer = transfer;
+		}
+	}
+
+	/**
+	 * The passes of an image group that are not complete yet.
+	 */
+	private static class Progress {
+		/** passes of the copy workers and of the writers of the roots */
+		final AtomicInteger copying;
+		/** all passes, including those of the limited roots */
+		final AtomicInteger remaining;
+
+		Progress(int copying, int limited) {
+			this.copying = new AtomicInteger(copying);
+			this.remaining = new AtomicInteger(copying + limited);
+		}
+
+		/**
+		 * Adds the passes of the writers of the roots, to which a copy worker hands a source file.
+		 */
+		void add(int passes) {
+			copying.addAndGet(passes);
+			remaining.addAndGet(passes);
+		}
+	}
+
+	/**
+	 * A small source file that was read into memory once and is written to the destinations on
+	 * each of its roots by the writer of the root.
+	 */
+	private static class SharedSource {
+		final Transfer transfer;
+		final ByteBuffer data;
+		final long checksum;
+		final boolean count;
+		final long start;
+		/** bytes of the file that were acquired from the shared memory */
+		final int permits;
+		/** roots whose destinations are not written yet */
+		final AtomicInteger roots;
+		volatile boolean copied = false;
+
+		SharedSource(Transfer transfer, ByteBuffer data, long checksum, boolean count, long start, int permits, int roots) {
+			this.transfer = transfer;
+			this.data = data;
+			this.checksum = checksum;
+			this.count = count;
+			this.start = start;
+			this.permits = permits;
+			this.roots = new AtomicInteger(roots);
+		}
+	}
+
+	/**
+	 * The written destinations of a target with durability mode {@code batch}, which are not
+	 * synced and renamed yet.
+	 */
+	private static class SyncBatch {
+		final int maxFiles;
+		final long maxBytes;
+		Map<Destination, Transfer> pending = new LinkedHashMap<Destination, Transfer>();
+		long bytes = 0;
+
+		SyncBatch(int maxFiles, long maxBytes) {
+			this.maxFiles = maxFiles;
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized void add(Transfer transfer, Destination to) {
+			pending.put(to, transfer);
+			bytes += transfer.getSource().length();
+		}
+
+		synchronized boolean isFull() {
+			return pending.size() >= maxFiles || bytes >= maxBytes;
+		}
+
+		synchronized Map<Destination, Transfer> drain() {
+			Map<Destination, Transfer> result = pending;
+			pending = new LinkedHashMap<Destination, Transfer>();
+			bytes = 0;
+			return result;
+		}
+	}
+
+	public FanOutCopyTask(List<CopyTask> tasks) {
+		Map<String, RateLimiter> roots = new HashMap<String, RateLimiter>();
+		for (CopyTask task : tasks) {
+			this.tasks.put(task.getName(), task);
+			TargetConfig target = task.getTarget();
+			// targets on the same root share the lowest number of writers of all of them
+			int threads = (target.threads == null) ? 1 : Math.max(1, target.threads);
+			Semaphore writer = writers.get(getRoot(task));
+			if (writer == null || writer.availablePermits() > threads) {
+				writers.put(getRoot(task), new Semaphore(threads, true));
+			}
+			if (target.durability == TargetConfig.Durability.batch) {
+				batches.put(task, new SyncBatch(target.syncfiles, target.syncbytes));
+			}
+			policies.put(task, new VerificationPolicy(target));
+			if (target.bandwidth != null) {
+				// targets on the same root share the lowest bandwidth of all of them
+				String root = getRoot(task);
+				RateLimiter limiter = roots.get(root);
+				if (limiter == null || limiter.getBytesPerSecond() > target.bandwidth) {
+					roots.put(root, new RateLimiter(root, target.bandwidth));
+				}
+			}
+		}
+		for (CopyTask task : tasks) {
+			if (task.getTarget().bandwidth != null) {
+				limiters.put(task, roots.get(getRoot(task)));
+			}
+		}
+	}
+
+	private static String getRoot(CopyTask task) {
+		return new File(task.getTarget().root).getAbsolutePath();
+	}
+
+	/**
+	 * Limits the bandwidth, at which the source files are read.
+	 * @param bytesPerSecond maximum bandwidth in bytes per second, or {@code null} to disable the
+	 * limit
+	 */
+	public void setSourceBandwidth(Long bytesPerSecond) {
+		sourceLimiter = (bytesPerSecond == null) ? null : new RateLimiter("source", bytesPerSecond);
+	}
+
+	/**
+	 * Sets the number of workers that read from the source device concurrently.
+	 * @param threads number of copy workers; values less than 1 are treated as 1
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Sets the maximal number of image groups that are copied at once, i.e., whose destinations
+	 * were resolved but whose copies are not complete yet.
+	 * @param capacity maximal number of groups; values less than 1 are treated as 1
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Sets the journal, in which all copies are recorded before they are started and after they
+	 * are completed. A value of {@code null} disables the journal.
+	 */
+	public void setJournal(CopyJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Copies the given image groups to all targets. The groups may also be produced while they are
+	 * copied, e.g., by an {@link ImportPipeline}; their destinations are resolved in the order in
+	 * which they are returned by the iterator. The next group is only taken from the iterator once
+	 * less than {@link #setCapacity(int) capacity} groups are being copied.
+	 * @param files image groups to copy
+	 */
+	public void copyFiles(Iterable<ImportGroup> files) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		groups = new Semaphore(capacity);
+		startWriters();
+		startVerifiers();
+		try {
+			for (ImportGroup group : files) {
+				groups.acquire();
+				List<Transfer> transfers = resolve(group);
+				if (journal != null) {
+					journal.begin(transfers);
+				}
+				submit(executor, transfers);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			await(executor);
+			awaitWriters();
+			flush();
+			awaitVerifiers();
+		}
+	}
+
+	/**
+	 * Resolves the destinations of the given image groups in all targets without copying any
+	 * file or creating any directory. The transfers can be executed later on with
+	 * {@link #copyTransfers(List)}, e.g., after they were written to an {@link ImportPlan}.
+	 * @param files image groups to resolve
+	 * @return transfers of all files of the groups, in the order of the groups
+	 */
+	public List<Transfer> plan(Iterable<ImportGroup> files) {
+		for (CopyTask task : tasks.values()) {
+			task.setDryRun(true);
+		}
+		List<Transfer> transfers = new ArrayList<Transfer>();
+		for (ImportGroup group : files) {
+			transfers.addAll(resolve(group));
+		}
+		return transfers;
+	}
+
+	/**
+	 * Executes the given transfers, e.g., the incomplete copies of an interrupted import or the
+	 * transfers of a plan. Missing directories are created. Copies whose destination already 
+	 * exists with the content of the source were completed before, and only their temporary files
+	 * are removed. If a destination exists with another content, the source is copied under a new
+	 * name.
+	 * @param transfers transfers to execute
+	 */
+	public void copyTransfers(List<Transfer> transfers) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		groups = new Semaphore(capacity);
+		startWriters();
+		startVerifiers();
+		try {
+			List<Transfer> remaining = new ArrayList<Transfer>(transfers.size());
+			for (Transfer transfer : transfers) {
+				Transfer rest = new Transfer(transfer.getSource(), transfer.getDcfNumber(), transfer.getDateTime());
+				for (Map.Entry<String, File> destination : transfer.getDestinations().entrySet()) {
+					File temp = FileUtils.getTemporaryFile(destination.getValue());
+					if (temp.exists() && !temp.delete()) {
+						log.warning("Could not remove incomplete file " + temp);
+					}
+					if (!tasks.containsKey(destination.getKey())) {
+						log.warning("Target " + destination.getKey() + " does not exist; skipping " + destination.getValue());
+					} else if (destination.getValue().exists() && FileUtils.contentEquals(transfer.getSource(), destination.getValue())) {
+						log.info("Skipping completed file " + destination.getValue());
+						if (journal != null) {
+							journal.done(destination.getKey(), destination.getValue());
+						}
+					} else {
+						// a destination that exists with another content is moved to a new name by rename()
+						tasks.get(destination.getKey()).mkdirs(destination.getValue().getParentFile());
+						rest.addDestination(destination.getKey(), destination.getValue());
+						if (transfer.getLink(destination.getKey()) != null) {
+							rest.addLink(destination.getKey(), transfer.getLink(destination.getKey()));
+						}
+					}
+				}
+				if (!rest.getDestinations().isEmpty()) {
+					remaining.add(rest);
+				}
+			}
+			// the groups of the transfers are not known, so each transfer is treated as a group
+			for (Transfer transfer : remaining) {
+				groups.acquire();
+				submit(executor, Collections.singletonList(transfer));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			await(executor);
+			awaitWriters();
+			flush();
+			awaitVerifiers();
+		}
+	}
+
+	/**
+	 * Resolves the destinations of all files of the group in all targets.
+	 */
+	private List<Transfer> resolve(ImportGroup group) {
+		List<Transfer> transfers = new ArrayList<Transfer>();
+		List<Map<File, File>> destinations = new ArrayList<Map<File, File>>(tasks.size());
+		for (CopyTask task : tasks.values()) {
+			long start = System.nanoTime();
+			destinations.add(task.prepare(group));
+			Metrics.record(Metrics.RESOLVE, start);
+		}
+		for (File from : group.getFiles()) {
+			Transfer transfer = new Transfer(from, group);
+			int i = 0;
+			for (CopyTask task : tasks.values()) {
+				File to = destinations.get(i++).get(from);
+				if (to != null) {
+					transfer.addDestination(task.getName(), to);
+					if (task.getLink(from) != null) {
+						transfer.addLink(task.getName(), task.getLink(from));
+					}
+				}
+			}
+			if (!transfer.getDestinations().isEmpty()) {
+				transfers.add(transfer);
+			}
+		}
+		return transfers;
+	}
+
+	/**
+	 * Submits the transfers of a group to the executor. The destinations of limited targets are
+	 * submitted to the writers of their roots as a separate pass over the whole group. Once all
+	 * transfers of the group are complete in a pass, the full sync batches are synced; once they
+	 * are complete in all passes, including those of the limited roots, the slot of the group that
+	 * was acquired by the caller is released. Thus, the queue of a slow writer holds at most as many
+	 * groups as are copied at once.
+	 */
+	private void submit(ExecutorService executor, List<Transfer> transfers) {
+		List<Pass> passes = new ArrayList<Pass>(transfers.size());
+		Map<RateLimiter, List<Pass>> limited = new LinkedHashMap<RateLimiter, List<Pass>>();
+		for (Transfer transfer : transfers) {
+			Pass pass = new Pass(transfer);
+			Map<RateLimiter, Pass> separate = new LinkedHashMap<RateLimiter, Pass>();
+			for (Map.Entry<String, File> destination : transfer.getDestinations().entrySet()) {
+				CopyTask task = tasks.get(destination.getKey());
+				Destination to = new Destination(task, destination.getValue(), limiters.get(task));
+				if (to.limiter == null || !limitedWriters.containsKey(to.limiter)) {
+					pass.targets.add(to);
+					continue;
+				}
+				if (!separate.containsKey(to.limiter)) {
+					separate.put(to.limiter, new Pass(transfer));
+				}
+				separate.get(to.limiter).targets.add(to);
+			}
+			if (!pass.targets.isEmpty()) {
+				pass.count = true;
+			} else {
+				separate.values().iterator().next().count = true;
+			}
+			passes.add(pass);
+			for (Map.Entry<RateLimiter, Pass> entry : separate.entrySet()) {
+				if (!limited.containsKey(entry.getKey())) {
+					limited.put(entry.getKey(), new ArrayList<Pass>());
+				}
+				limited.get(entry.getKey()).add(entry.getValue());
+			}
+		}
+
+		if (passes.isEmpty()) {
+			groups.release();
+			return;
+		}
+		final Progress progress = new Progress(passes.size(), limited.size());
+		for (final Pass pass : passes) {
+			pass.progress = progress;
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						copy(pass);
+					} finally {
+						copied(progress);
+					}
+				}
+			});
+		}
+		for (Map.Entry<RateLimiter, List<Pass>> entry : limited.entrySet()) {
+			final List<Pass> group = entry.getValue();
+			limitedWriters.get(entry.getKey()).execute(new Runnable() {
+				public void run() {
+					try {
+						for (Pass pass : group) {
+							copy(pass);
+						}
+						flushFull();
+					} finally {
+						release(progress);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Marks a pass of a copy worker or of the writer of a root as complete. Once all of these
+	 * passes of the group are complete, the full sync batches are synced.
+	 */
+	private void copied(Progress progress) {
+		if (progress.copying.decrementAndGet() == 0) {
+			flushFull();
+		}
+		release(progress);
+	}
+
+	/**
+	 * Releases the slot of a group once the last of its remaining passes is complete.
+	 */
+	private void release(Progress progress) {
+		if (progress.remaining.decrementAndGet() == 0) {
+			groups.release();
+		}
+	}
+
+	/**
+	 * Syncs all sync batches that are full.
+	 */
+	private void flushFull() {
+		for (Map.Entry<CopyTask, SyncBatch> batch : batches.entrySet()) {
+			if (batch.getValue().isFull()) {
+				flush(batch.getKey(), batch.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Starts a writer for each target root, with as many workers as the lowest {@code threads}
+	 * setting of the targets on the root. The writers of the limited roots copy their own passes,
+	 * the writers of the other roots write the shared source files.
+	 */
+	private void startWriters() {
+		Map<String, Integer> roots = new LinkedHashMap<String, Integer>();
+		for (CopyTask task : tasks.values()) {
+			if (limiters.containsKey(task)) continue;
+			Integer threads = task.getTarget().threads;
+			int count = (threads == null) ? 1 : Math.max(1, threads);
+			if (roots.containsKey(getRoot(task))) {
+				count = Math.min(count, roots.get(getRoot(task)));
+			}
+			roots.put(getRoot(task), count);
+		}
+		for (Map.Entry<String, Integer> writer : roots.entrySet()) {
+			rootWriters.put(writer.getKey(), Executors.newFixedThreadPool(writer.getValue()));
+		}
+		Map<RateLimiter, Integer> workers = new LinkedHashMap<RateLimiter, Integer>();
+		for (Map.Entry<CopyTask, RateLimiter> limiter : limiters.entrySet()) {
+			Integer threads = limiter.getKey().getTarget().threads;
+			int count = (threads == null) ? 1 : Math.max(1, threads);
+			if (workers.containsKey(limiter.getValue())) {
+				count = Math.min(count, workers.get(limiter.getValue()));
+			}
+			workers.put(limiter.getValue(), count);
+		}
+		for (Map.Entry<RateLimiter, Integer> writer : workers.entrySet()) {
+			limitedWriters.put(writer.getKey(), Executors.newFixedThreadPool(writer.getValue()));
+		}
+	}
+
+	/**
+	 * Waits until the writers of all target roots are done.
+	 */
+	private void awaitWriters() {
+		for (ExecutorService writer : rootWriters.values()) {
+			await(writer);
+		}
+		rootWriters.clear();
+		for (ExecutorService writer : limitedWriters.values()) {
+			await(writer);
+		}
+		limitedWriters.clear();
+	}
+
+	/**
+	 * Starts a verification worker for each target that verifies its files.
+	 */
+	private void startVerifiers() {
+		for (CopyTask task : tasks.values()) {
+			if (task.getTarget().verify != null && task.getTarget().verify) {
+				verifiers.put(task, Executors.newSingleThreadExecutor());
+			}
+		}
+	}
+
+	/**
+	 * Waits until all submitted copies are verified.
+	 */
+	private void awaitVerifiers() {
+		for (ExecutorService verifier : verifiers.values()) {
+			await(verifier);
+		}
+		verifiers.clear();
+	}
+
+	private void await(ExecutorService executor) {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the verification records of all verified files. All copies are verified once
+	 * {@link #copyFiles(Iterable)} or {@link #copyTransfers(List)} returns.
+	 * @return list of verification records, in the order the files were verified
+	 */
+	public List<Verification> getVerifications() {
+		return verifications;
+	}
+
+	/**
+	 * Copies a source file to the destinations of a pass.
+	 */
+	private void copy(Pass pass) {
+		try {
+			copy(pass.transfer, pass.targets, pass.count, pass.progress);
+		} catch (RuntimeException e) {
+			log.log(Level.SEVERE, "Could not copy file " + pass.transfer.getSource(), e);
+		}
+	}
+
+	/**
+	 * Copies a source file to the given destinations. A small file whose destinations are on
+	 * several roots is read into memory and handed to the writers of the roots; all other files are
+	 * written to all destinations at once.
+	 * @param count whether to count the source file as copied
+	 * @param progress progress of the group of the source file
+	 */
+	private void copy(Transfer transfer, List<Destination> targets, boolean count, Progress progress) {
+		File from = transfer.getSource();
+
+		// link duplicates to the existing files instead of copying them
+		for (Iterator<Destination> it = targets.iterator(); it.hasNext(); ) {
+			Destination to = it.next();
+			File existing = transfer.getLink(to.task.getName());
+			if (existing != null && link(transfer, to, existing)) {
+				it.remove();
+				Metrics.deduplicated(to.task.getName(), from.length());
+				complete(transfer, to);
+			}
+		}
+		if (targets.isEmpty()) return;
+
+		for (Destination to : targets) {
+			log.info("Copying file " + from.toString() + " to " + to.file.toString());
+		}
+		long start = System.nanoTime();
+		boolean verify = false;
+		for (Destination to : targets) {
+			to.verify = policies.get(to.task).select(from);
+			verify |= to.verify;
+		}
+		Map<String, List<Destination>> roots = new LinkedHashMap<String, List<Destination>>();
+		for (Destination to : targets) {
+			if (!roots.containsKey(getRoot(to.task))) {
+				roots.put(getRoot(to.task), new ArrayList<Destination>());
+			}
+			roots.get(getRoot(to.task)).add(to);
+		}
+		if (roots.size() > 1 && isShared(from, targets)) {
+			share(transfer, roots, verify, count, progress, start);
+			return;
+		}
+		long checksum;
+		try {
+			checksum = write(transfer, targets, verify);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not move file", e);
+			for (Destination to : targets) {
+				to.temp.delete();
+				Metrics.written(to.task.getName(), 0, start, true);
+			}
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (written(transfer, targets, checksum, start) && count) {
+			Metrics.copied(from, start);
+		}
+	}
+
+	/**
+	 * Records the written destinations of a source file in the metrics and submits them to their
+	 * sync batches or verification.
+	 * @return true, if at least one destination was written
+	 */
+	private boolean written(Transfer transfer, List<Destination> targets, long checksum, long start) {
+		boolean copied = false;
+		for (Destination to : targets) {
+			Metrics.written(to.task.getName(), transfer.getSource().length(), start, to.failed);
+			copied |= !to.failed;
+		}
+		for (Destination to : targets) {
+			if (to.failed) continue;
+			to.checksum = checksum;
+			if (batches.containsKey(to.task)) {
+				// verified once the batch is synced
+				batches.get(to.task).add(transfer, to);
+			} else {
+				verify(transfer, to);
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Checks whether a source file is read into memory once and written to each of its roots by the
+	 * writer of the root. Large files are not kept in memory, and files to targets that set a copy
+	 * mode are copied with their strategy.
+	 */
+	private static boolean isShared(File from, List<Destination> targets) {
+		if (from.length() >= CopyStrategy.LARGE_FILE) return false;
+		for (Destination to : targets) {
+			if (CopyStrategy.get(to.task.getTarget().copymode) != null) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a small source file into memory and hands it to the writers of its roots, which write it
+	 * to their destinations independently of each other. The memory is released once the file was
+	 * written to all roots.
+	 */
+	private void share(Transfer transfer, Map<String, List<Destination>> roots, boolean checksum, boolean count, final Progress progress, long start) {
+		File from = transfer.getSource();
+		int permits = (int) Math.min(from.length(), SHARED_BYTES);
+		try {
+			shared.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		ByteBuffer data;
+		try {
+			data = CopyStrategy.readFully(from, sourceLimiter);
+		} catch (IOException e) {
+			shared.release(permits);
+			log.log(Level.WARNING, "Could not read file " + from, e);
+			for (List<Destination> targets : roots.values()) {
+				for (Destination to : targets) {
+					Metrics.written(to.task.getName(), 0, start, true);
+				}
+			}
+			return;
+		}
+		long crc = -1L;
+		if (checksum) {
+			CRC32 sum = new CRC32();
+			sum.update(data.duplicate());
+			crc = sum.getValue();
+		}
+		final SharedSource source = new SharedSource(transfer, data, crc, count, start, permits, roots.size());
+		progress.add(roots.size());
+		for (final Map.Entry<String, List<Destination>> root : roots.entrySet()) {
+			rootWriters.get(root.getKey()).execute(new Runnable() {
+				public void run() {
+					try {
+						write(source, root.getKey(), root.getValue());
+					} catch (RuntimeException e) {
+						log.log(Level.SEVERE, "Could not copy file " + source.transfer.getSource(), e);
+					} finally {
+						if (source.roots.decrementAndGet() == 0) {
+							shared.release(source.permits);
+							if (source.copied && source.count) {
+								Metrics.copied(source.transfer.getSource(), source.start);
+							}
+						}
+						copied(progress);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes a shared source file to its destinations on the given root, holding a slot of the root
+	 * while the file is written.
+	 */
+	private void write(SharedSource source, String root, List<Destination> targets) {
+		Semaphore slot = writers.get(root);
+		try {
+			slot.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		try {
+			CopyStrategy.writeFully(source.data, targets);
+			finish(source.transfer, targets);
+		} finally {
+			slot.release();
+		}
+		if (written(source.transfer, targets, source.checksum, source.start)) {
+			source.copied = true;
+		}
+	}
+
+	/**
+	 * Writes the source file to the temporary files of the destinations and renames them to their
+	 * final names, unless they are renamed with their sync batch. A slot of the root of each 
+	 * destination is held only while the file is written.
+	 * @param checksum whether to compute the checksum of the source file while copying
+	 * @return CRC checksum of the source file, or -1 if it was not computed
+	 * @throws IOException if the source file cannot be read
+	 * @throws InterruptedException if the thread was interrupted while waiting for a free slot
+	 */
+	private long write(Transfer transfer, List<Destination> targets, boolean checksum) throws IOException, InterruptedException {
+		// acquire the roots always in the same order to avoid deadlocks
+		Set<String> roots = new TreeSet<String>();
+		for (Destination to : targets) {
+			roots.add(getRoot(to.task));
+		}
+		List<Semaphore> acquired = new ArrayList<Semaphore>(roots.size());
+		try {
+			for (String root : roots) {
+				Semaphore semaphore = writers.get(root);
+				semaphore.acquire();
+				acquired.add(semaphore);
+			}
+			long crc = copyFile(transfer.getSource(), targets, checksum);
+			finish(transfer, targets);
+			return crc;
+		} finally {
+			for (Semaphore semaphore : acquired) {
+				semaphore.release();
+			}
+		}
+	}
+
+	/**
+	 * Moves the written temporary files of the destinations to their final names, unless they are
+	 * moved with their sync batch, and removes those of failed destinations.
+	 */
+	private void finish(Transfer transfer, List<Destination> targets) {
+		for (Destination to : targets) {
+			if (to.failed) {
+				to.temp.delete();
+			} else if (batches.containsKey(to.task)) {
+				// renamed when the batch is synced
+				continue;
+			} else if (to.task.getTarget().durability == TargetConfig.Durability.file) {
+				long syncStart = System.nanoTime();
+				if (rename(transfer, to, true)) {
+					syncDirectory(to.file.getParentFile());
+					Metrics.synced(to.task.getName(), 1, syncStart);
+				}
+			} else {
+				rename(transfer, to, false);
+			}
+		}
+	}
+
+	/**
+	 * Moves a destination that already exists to a new name in the same directory. The new name
+	 * is only kept in the destination, which belongs to a single pass, while the transfer is
+	 * shared by the passes of all roots and is never changed. The copy to the new name is recorded
+	 * in the journal before the old entry is closed, such that an interrupted import resumes the
+	 * copy to the new name.
+	 */
+	private void relocate(Transfer transfer, Destination to) {
+		File file = to.task.resolveConflict(to.file);
+		log.warning(to.file + " already exists; copying " + transfer.getSource() + " to " + file + " instead.");
+		if (journal != null) {
+			Transfer relocated = new Transfer(transfer.getSource(), transfer.getDcfNumber(), transfer.getDateTime());
+			relocated.addDestination(to.task.getName(), file);
+			journal.begin(Collections.singletonList(relocated));
+			journal.done(to.task.getName(), to.file);
+		}
+		to.file = file;
+	}
+
+	/**
+	 * Moves the temporary file of a destination to its final name, optionally after syncing it.
+	 * If a file of the final name exists, the destination is moved to a new name.
+	 * @return true, if the file was moved
+	 */
+	private boolean rename(Transfer transfer, Destination to, boolean sync) {
+		try {
+			if (sync) {
+				FileUtils.sync(to.temp);
+			}
+			while (true) {
+				try {
+					place(to);
+					return true;
+				} catch (FileAlreadyExistsException e) {
+					relocate(transfer, to);
+				}
+			}
+		} catch (IOException e) {
+			to.fail(e);
+			to.temp.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Creates the final name of a destination as a hard link to its temporary file and removes the
+	 * temporary file, or renames the temporary file if the file system does not support hard links.
+	 * @throws FileAlreadyExistsException if a file of the final name exists
+	 */
+	private void place(Destination to) throws IOException {
+		try {
+			Files.createLink(to.file.toPath(), to.temp.toPath());
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (IOException | UnsupportedOperationException e) {
+			log.log(Level.FINE, "Could not link " + to.file + "; renaming " + to.temp + " instead", e);
+			// without REPLACE_EXISTING, the move fails if the file exists
+			Files.move(to.temp.toPath(), to.file.toPath());
+			return;
+		}
+		Files.delete(to.temp.toPath());
+	}
+
+	private void syncDirectory(File directory) {
+		try {
+			FileUtils.sync(directory);
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not sync directory " + directory, e);
+		}
+	}
+
+	/**
+	 * Syncs and renames the written files of all sync batches, e.g., at the end of an import.
+	 */
+	private void flush() {
+		for (Map.Entry<CopyTask, SyncBatch> batch : batches.entrySet()) {
+			flush(batch.getKey(), batch.getValue());
+		}
+	}
+
+	/**
+	 * Syncs the written files of the batch, renames them to their final names and syncs each of
+	 * their directories once. Afterwards, the files are verified and recorded as complete.
+	 */
+	private void flush(CopyTask task, SyncBatch batch) {
+		Map<Destination, Transfer> pending = batch.drain();
+		if (pending.isEmpty()) return;
+		long start = System.nanoTime();
+		Set<File> directories = new LinkedHashSet<File>();
+		int synced = 0;
+		for (Destination to : pending.keySet()) {
+			if (rename(pending.get(to), to, true)) {
+				directories.add(to.file.getParentFile());
+				synced++;
+			}
+		}
+		for (File directory : directories) {
+			syncDirectory(directory);
+		}
+		Metrics.synced(task.getName(), synced, start);
+		log.fine("Synced " + synced + " files in " + directories.size() + " directories of target " + task.getName());
+		for (Map.Entry<Destination, Transfer> entry : pending.entrySet()) {
+			if (!entry.getKey().failed) {
+				verify(entry.getValue(), entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Records a destination that was successfully written in its target and in the journal.
+	 */
+	private void complete(Transfer transfer, Destination to) {
+		to.task.copied(transfer, to.file);
+		if (journal != null) {
+			journal.done(to.task.getName(), to.file);
+		}
+	}
+
+	/**
+	 * Creates a destination as a hard link to an existing file with the same content as the source
+	 * file. If a file of the name of the destination exists, the destination is moved to a new
+	 * name.
+	 * @return true, if the link was created
+	 */
+	private boolean link(Transfer transfer, Destination to, File existing) {
+		log.info("Linking file " + to.file.toString() + " to existing file " + existing.toString());
+		while (true) {
+			try {
+				Files.createLink(to.file.toPath(), existing.toPath());
+				return true;
+			} catch (FileAlreadyExistsException e) {
+				relocate(transfer, to);
+			} catch (IOException | UnsupportedOperationException e) {
+				log.log(Level.WARNING, "Could not link file " + to.file + "; copying it instead", e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Submits the verification of a written copy to the verification worker of its target, if the
+	 * copy was selected for verification. The copy is recorded as complete once it was verified;
+	 * copies that were not selected are recorded immediately. A copy that does not match its source
+	 * is deleted, and a copy that could not be verified is left as incomplete in the journal.
+	 */
+	private void verify(final Transfer transfer, final Destination to) {
+		if (!to.verify || !verifiers.containsKey(to.task)) {
+			complete(transfer, to);
+			return;
+		}
+		final File from = transfer.getSource();
+		verifiers.get(to.task).execute(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				long checksum = FileUtils.checksum(to.file, to.task.getTarget().verifydirect);
+				Metrics.verified(to.task.getName(), start);
+				Verification result = new Verification(from, to.file, to.checksum, checksum);
+				if (result.getStatus() == Verification.Status.ok) {
+					complete(transfer, to);
+				} else if (result.getStatus() == Verification.Status.failed) {
+					log.warning("Could not verify files " + from + " and " + to.file + " as the checksum computation failed");
+				} else {
+					log.warning("Files " + from + " and " + to.file + " have different checksums; removing the copy");
+					if (!to.file.delete()) {
+						log.warning("Could not remove file " + to.file);
+					}
+				}
+				verifications.add(result);
+			}
+		});
+	}
+
+	/**
+	 * Copies the source file to the temporary files of all destinations. The destinations are
+	 * grouped by the copy strategy of their target, and each group is copied by its strategy;
+	 * destinations of targets without a copy mode share the automatically selected strategy.
+	 * Destinations that cannot be written are marked as failed.
+	 * @param checksum whether to compute the checksum of the source file while copying
+	 * @return CRC checksum of the source file, or -1 if it was not computed
+	 * @throws IOException if the source file cannot be read
+	 */
+	private long copyFile(File sourceFile, List<Destination> destinations, boolean checksum) throws IOException {
+		Map<CopyStrategy, List<Destination>> strategies = new LinkedHashMap<CopyStrategy, List<Destination>>();
+		List<Destination> automatic = new ArrayList<Destination>();
+		for (Destination to : destinations) {
+			CopyStrategy strategy = CopyStrategy.get(to.task.getTarget().copymode);
+			if (strategy == null) {
+				automatic.add(to);
+				continue;
+			}
+			if (!strategies.containsKey(strategy)) {
+				strategies.put(strategy, new ArrayList<Destination>());
+			}
+			strategies.get(strategy).add(to);
+		}
+		if (!automatic.isEmpty()) {
+			CopyStrategy strategy = CopyStrategy.select(sourceFile, sourceLimiter, automatic, checksum);
+			if (!strategies.containsKey(strategy)) {
+				strategies.put(strategy, new ArrayList<Destination>());
+			}
+			strategies.get(strategy).addAll(automatic);
+		}
+
+		long crc = -1L;
+		for (Map.Entry<CopyStrategy, List<Destination>> strategy : strategies.entrySet()) {
+			log.fine("Copying file " + sourceFile + " with strategy " + strategy.getKey());
+			// the checksum is only computed once, by the first strategy
+			long result = strategy.getKey().copy(sourceFile, sourceLimiter, strategy.getValue(), checksum && crc == -1L);
+			if (crc == -1L) {
+				crc = result;
+			}
+		}
+		return checksum ? crc : -1L;
+	}
+}
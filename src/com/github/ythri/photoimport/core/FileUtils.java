@@ -1,10 +1,19 @@
 package com.github.ythri.photoimport.core;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.util.Arrays;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.zip.CRC32;
@@ -17,6 +26,8 @@ import java.util.zip.CRC32;
 public final class FileUtils {
 	private static final Logger log = Logger.getLogger(FileUtils.class.getName());
 
+	private static final int SAMPLE_SIZE = 64 * 1024;
+
 	private FileUtils() {}
 
 	/**
@@ -48,6 +59,17 @@ public final class FileUtils {
 		return (position <= 0) ? "" : fileName.substring(position + 1);
 	}
 
+	/**
+	 * Returns the temporary file that is used while copying to the given destination. The 
+	 * temporary file is a hidden file in the same directory, such that it can be atomically renamed 
+	 * to the destination once the copy is complete.
+	 * @param destination final destination of a copy
+	 * @return temporary file for the destination
+	 */
+	public static File getTemporaryFile(File destination) {
+		return new File(destination.getParentFile(), "." + destination.getName() + ".part");
+	}
+
 	/**
 	 * Computes the checksum of the file using cyclic redundancy checks (CRC32). Files with the 
 	 * exact same content always have the same checksum. If an error occurs while reading the file, 
@@ -78,4 +100,149 @@ public final class FileUtils {
 		}
 		return value;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Computes the checksum of the file like {@link #checksum(File)}, but optionally bypasses the 
+	 * page cache of the operating system. This makes sure that the checksum is computed from the 
+	 * data actually stored on the disk, instead of the data that was just written to the cache. If 
+	 * the file system does not support direct I/O, the file is read normally.
+	 * @param file file, for which the CRC checksum is computed
+	 * @param direct whether to bypass the page cache
+	 * @return CRC checksum of the file
+	 */
+	public static long checksum(File file, boolean direct) {
+		if (!direct) return checksum(file);
+		Path path = file.toPath();
+		FileChannel channel;
+		int blockSize;
+		try {
+			blockSize = (int) Files.getFileStore(path).getBlockSize();
+			channel = FileChannel.open(path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+		} catch (UnsupportedOperationException | IOException e) {
+			log.log(Level.FINE, "Direct I/O is not available for file " + file.toString(), e);
+			return checksum(file);
+		}
+
+		CRC32 crc = new CRC32();
+		long value = -1L;
+		try {
+			long size = channel.size();
+			long total = 0;
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024 + blockSize).alignedSlice(blockSize);
+			while (total < size) {
+				buffer.clear();
+				int bytesRead = channel.read(buffer);
+				if (bytesRead <= 0) break;
+				total += bytesRead;
+				buffer.flip();
+				crc.update(buffer);
+			}
+			value = crc.getValue();
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Error computing the crc of file " + file.toString(), e);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+		return value;
+	}
+
+	/**
+	 * Computes a fast checksum of the file, which only reads the first and the last 64 kB of the 
+	 * file and includes its size. Files with the same content always have the same fast checksum, 
+	 * but different files may have the same fast checksum as well, so it should only be used to 
+	 * rule out identical files before comparing them with {@link #contentEquals(File, File)}. If an 
+	 * error occurs while reading the file, the method returns the value {@code -1}.
+	 * @param file file, for which the fast checksum is computed
+	 * @return fast CRC checksum of the file
+	 */
+	public static long fastChecksum(File file) {
+		CRC32 crc = new CRC32();
+		FileChannel channel = null;
+		long value = -1L;
+		try {
+			channel = new FileInputStream(file).getChannel();
+			long size = channel.size();
+			ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+			buffer.putLong(size).flip();
+			crc.update(buffer);
+			long[] positions = { 0, Math.max(SAMPLE_SIZE, size - SAMPLE_SIZE) };
+			for (long position : positions) {
+				buffer.clear();
+				while (buffer.hasRemaining() && position + buffer.position() < size) {
+					if (channel.read(buffer, position + buffer.position()) < 0) break;
+				}
+				buffer.flip();
+				crc.update(buffer);
+			}
+			value = crc.getValue();
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Error computing the fast crc of file " + file.toString(), e);
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Compares the content of two files byte by byte. If an error occurs while reading one of the 
+	 * files, they are treated as different.
+	 * @param file1 first file
+	 * @param file2 second file
+	 * @return true, if both files have the same size and content
+	 */
+	public static boolean contentEquals(File file1, File file2) {
+		long size = file1.length();
+		if (size != file2.length()) return false;
+		DataInputStream in1 = null, in2 = null;
+		try {
+			in1 = new DataInputStream(new FileInputStream(file1));
+			in2 = new DataInputStream(new FileInputStream(file2));
+			byte[] buffer1 = new byte[SAMPLE_SIZE];
+			byte[] buffer2 = new byte[SAMPLE_SIZE];
+			for (long remaining = size; remaining > 0; remaining -= buffer1.length) {
+				if (remaining < buffer1.length) {
+					buffer1 = new byte[(int) remaining];
+					buffer2 = new byte[(int) remaining];
+				}
+				in1.readFully(buffer1);
+				in2.readFully(buffer2);
+				if (!Arrays.equals(buffer1, buffer2)) return false;
+			}
+			return true;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Error comparing files " + file1.toString() + " and " + file2.toString(), e);
+			return false;
+		} finally {
+			for (DataInputStream in : new DataInputStream[] { in1, in2 }) {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forces the content and metadata of a file or directory to the storage device, such that it
+	 * survives a crash or power loss. Syncing a directory makes the creation and renaming of the
+	 * files in it durable; this is not supported on all platforms, e.g., on Windows.
+	 * @param file file or directory to sync
+	 * @throws IOException if the file cannot be opened or synced
+	 */
+	public static void sync(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), 
+			file.isDirectory() ? StandardOpenOption.READ : StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+}
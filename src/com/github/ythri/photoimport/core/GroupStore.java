@@ -0,0 +1,462 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * This class stores the image groups found in the source in a compact, column-oriented form, such
+ * that sources with millions of files can be imported without keeping an {@link ImportGroup}
+ * object, its file objects and its DateTime for each group in memory. Each group is stored as its
+ * directory, which is shared by all groups in the directory, its base name, the file name suffixes
+ * of its files, which are shared by all groups with the same extensions, its DCF number and its
+ * DateTime in epoch milliseconds, together with the size and modification time of each file. The
+ * image groups are only created again when the store is iterated.
+ * <p>
+ * The groups are returned in the order of their DateTime, if the store orders by date, or in the
+ * order of the paths of their first files otherwise, i.e., in the same order as sorting a list of
+ * the groups by their natural order or by {@link ImportGroup#PATH_ORDER}. The sort runs over
+ * arrays of indexes and primitive keys. If a budget is set and the number of groups in memory
+ * reaches it, the groups in memory are sorted and written to a temporary file as a sorted run;
+ * the runs are merged with the remaining groups while the store is iterated.
+ */
+public class GroupStore implements ImportSource.Listener, Iterable<ImportGroup> {
+	private static final Logger log = Logger.getLogger(GroupStore.class.getName());
+
+	private static final long NO_DATE = Long.MIN_VALUE;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final boolean dateOrder;
+	private final int budget;
+
+	// shared values
+	private final List<String> directories = new ArrayList<String>();
+	private final Map<String, Integer> directoryIds = new HashMap<String, Integer>();
+	private final List<String[]> suffixes = new ArrayList<String[]>();
+	private final Map<String, Integer> suffixIds = new HashMap<String, Integer>();
+
+	// columns of the groups in memory
+	private int count = 0;
+	private int[] directory = new int[INITIAL_CAPACITY];
+	private String[] name = new String[INITIAL_CAPACITY];
+	private int[] suffix = new int[INITIAL_CAPACITY];
+	private int[] dcfNumber = new int[INITIAL_CAPACITY];
+	private long[] dateTime = new long[INITIAL_CAPACITY];
+	private int[] firstFile = new int[INITIAL_CAPACITY + 1];
+
+	// columns of the files in memory
+	private long[] size = new long[INITIAL_CAPACITY];
+	private long[] modified = new long[INITIAL_CAPACITY];
+
+	private int[] order = null;
+	private long spilled = 0;
+	private final List<File> runs = new ArrayList<File>();
+
+	/**
+	 * A single group read from a sorted run, or taken from the groups in memory while merging.
+	 */
+	private static class Record {
+		long sequence;
+		int directory;
+		String name;
+		int suffix;
+		int dcfNumber;
+		long dateTime;
+		long[] size;
+		long[] modified;
+	}
+
+	/**
+	 * Creates an empty store.
+	 * @param dateOrder whether the groups are ordered by their DateTime, which must then be read
+	 * before they are added, or by the paths of their first files
+	 * @param budget maximum number of groups that are kept in memory, or 0 for no limit
+	 */
+	public GroupStore(boolean dateOrder, int budget) {
+		this.dateOrder = dateOrder;
+		this.budget = Math.max(0, budget);
+	}
+
+	/**
+	 * Adds the image groups found in a directory of the source.
+	 * @param groups image groups to add
+	 */
+	public void found(List<ImportGroup> groups) {
+		for (ImportGroup group : groups) {
+			add(group);
+		}
+	}
+
+	/**
+	 * Adds a single image group. All files of the group must be in the same directory.
+	 * @param group image group to add
+	 */
+	public void add(ImportGroup group) {
+		if (budget > 0 && count >= budget) {
+			spill();
+		}
+		List<File> files = group.getFiles();
+		if (count == directory.length) {
+			int capacity = 2 * count;
+			directory = Arrays.copyOf(directory, capacity);
+			name = Arrays.copyOf(name, capacity);
+			suffix = Arrays.copyOf(suffix, capacity);
+			dcfNumber = Arrays.copyOf(dcfNumber, capacity);
+			dateTime = Arrays.copyOf(dateTime, capacity);
+			firstFile = Arrays.copyOf(firstFile, capacity + 1);
+		}
+		int fileCount = firstFile[count] + files.size();
+		if (fileCount > size.length) {
+			int capacity = Math.max(2 * size.length, fileCount);
+			size = Arrays.copyOf(size, capacity);
+			modified = Arrays.copyOf(modified, capacity);
+		}
+
+		String baseName = FileUtils.getBaseName(files.get(0));
+		String[] fileSuffixes = new String[files.size()];
+		for (int i = 0; i < files.size(); i++) {
+			File file = files.get(i);
+			fileSuffixes[i] = file.getName().substring(baseName.length());
+			size[firstFile[count] + i] = file.length();
+			modified[firstFile[count] + i] = file.lastModified();
+		}
+		Date date = dateOrder ? group.getDateTime() : group.getDateTimeIfRead();
+		directory[count] = internDirectory(files.get(0).getParent() + File.separator);
+		name[count] = baseName;
+		suffix[count] = internSuffixes(fileSuffixes);
+		dcfNumber[count] = group.getDcfNumber();
+		dateTime[count] = (date == null) ? NO_DATE : date.getTime();
+		firstFile[count + 1] = fileCount;
+		count++;
+		order = null;
+	}
+
+	/**
+	 * Returns the number of groups in the store.
+	 * @return number of image groups
+	 */
+	public long size() {
+		return spilled + count;
+	}
+
+	/**
+	 * Returns an iterator over all groups of the store in their order. The groups in memory are
+	 * sorted when the first iterator is created; runs that were written to disk are read again by
+	 * each iterator.
+	 */
+	public Iterator<ImportGroup> iterator() {
+		if (order == null) {
+			order = sort();
+		}
+		final PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(runs.size() + 1);
+		Cursor memory = new MemoryCursor();
+		if (memory.next()) {
+			cursors.add(memory);
+		}
+		for (File run : runs) {
+			Cursor cursor = new RunCursor(run);
+			if (cursor.next()) {
+				cursors.add(cursor);
+			}
+		}
+		return new Iterator<ImportGroup>() {
+			public boolean hasNext() {
+				return !cursors.isEmpty();
+			}
+
+			public ImportGroup next() {
+				Cursor cursor = cursors.poll();
+				if (cursor == null) throw new NoSuchElementException();
+				ImportGroup group = toGroup(cursor.current);
+				if (cursor.next()) {
+					cursors.add(cursor);
+				}
+				return group;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Deletes the runs that were written to disk. The store must not be used afterwards.
+	 */
+	public void close() {
+		for (File run : runs) {
+			if (!run.delete()) {
+				log.warning("Could not delete temporary file " + run);
+			}
+		}
+		runs.clear();
+	}
+
+	private int internDirectory(String path) {
+		Integer id = directoryIds.get(path);
+		if (id == null) {
+			id = directories.size();
+			directories.add(path);
+			directoryIds.put(path, id);
+		}
+		return id;
+	}
+
+	private int internSuffixes(String[] fileSuffixes) {
+		StringBuilder key = new StringBuilder();
+		for (String s : fileSuffixes) {
+			key.append(s).append('/');
+		}
+		Integer id = suffixIds.get(key.toString());
+		if (id == null) {
+			id = suffixes.size();
+			suffixes.add(fileSuffixes);
+			suffixIds.put(key.toString(), id);
+		}
+		return id;
+	}
+
+	/**
+	 * Sorts the groups in memory and writes them to a temporary file as a sorted run.
+	 */
+	private void spill() {
+		int[] sorted = sort();
+		File run = null;
+		DataOutputStream out = null;
+		try {
+			run = File.createTempFile("photoimport-groups", ".run");
+			run.deleteOnExit();
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+			for (int i : sorted) {
+				out.writeLong(spilled + i);
+				out.writeInt(directory[i]);
+				out.writeUTF(name[i]);
+				out.writeInt(suffix[i]);
+				out.writeInt(dcfNumber[i]);
+				out.writeLong(dateTime[i]);
+				for (int f = firstFile[i]; f < firstFile[i + 1]; f++) {
+					out.writeLong(size[f]);
+					out.writeLong(modified[f]);
+				}
+			}
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to write image groups to temporary file " + run, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {}
+			}
+		}
+		log.fine("Wrote " + count + " image groups to " + run);
+		runs.add(run);
+		spilled += count;
+		count = 0;
+		Arrays.fill(name, null);
+		order = null;
+	}
+
+	/**
+	 * Sorts the indexes of the groups in memory with a stable merge sort.
+	 * @return indexes of the groups in memory in their order
+	 */
+	private int[] sort() {
+		int[] indexes = new int[count];
+		for (int i = 0; i < count; i++) {
+			indexes[i] = i;
+		}
+		int[] buffer = new int[indexes.length];
+		for (int width = 1; width < indexes.length; width *= 2) {
+			for (int left = 0; left < indexes.length; left += 2 * width) {
+				int middle = Math.min(left + width, indexes.length);
+				int right = Math.min(left + 2 * width, indexes.length);
+				int i = left, j = middle, k = left;
+				while (i < middle && j < right) {
+					buffer[k++] = (compare(indexes[j], indexes[i]) < 0) ? indexes[j++] : indexes[i++];
+				}
+				while (i < middle) buffer[k++] = indexes[i++];
+				while (j < right) buffer[k++] = indexes[j++];
+			}
+			int[] swap = indexes;
+			indexes = buffer;
+			buffer = swap;
+		}
+		return indexes;
+	}
+
+	private int compare(int a, int b) {
+		return compare(spilled + a, dateTime[a], directory[a], name[a], suffix[a],
+			spilled + b, dateTime[b], directory[b], name[b], suffix[b]);
+	}
+
+	private int compare(Record a, Record b) {
+		return compare(a.sequence, a.dateTime, a.directory, a.name, a.suffix,
+			b.sequence, b.dateTime, b.directory, b.name, b.suffix);
+	}
+
+	/**
+	 * Compares two groups by their DateTime or by the paths of their first files, and then by
+	 * the order in which they were added.
+	 */
+	private int compare(long sequence1, long date1, int directory1, String name1, int suffix1,
+			long sequence2, long date2, int directory2, String name2, int suffix2) {
+		int result;
+		if (dateOrder) {
+			result = (date1 < date2) ? -1 : ((date1 == date2) ? 0 : 1);
+		} else if (directory1 == directory2) {
+			result = compareConcatenated("", name1, suffixes.get(suffix1)[0], "", name2, suffixes.get(suffix2)[0]);
+		} else {
+			result = compareConcatenated(directories.get(directory1), name1, suffixes.get(suffix1)[0],
+				directories.get(directory2), name2, suffixes.get(suffix2)[0]);
+		}
+		if (result != 0) return result;
+		return (sequence1 < sequence2) ? -1 : ((sequence1 == sequence2) ? 0 : 1);
+	}
+
+	/**
+	 * Compares the concatenations of the given strings like {@link String#compareTo(String)}, but
+	 * without creating them.
+	 */
+	private static int compareConcatenated(String a1, String a2, String a3, String b1, String b2, String b3) {
+		int length1 = a1.length() + a2.length() + a3.length();
+		int length2 = b1.length() + b2.length() + b3.length();
+		for (int i = 0; i < Math.min(length1, length2); i++) {
+			char c1 = charAt(a1, a2, a3, i);
+			char c2 = charAt(b1, b2, b3, i);
+			if (c1 != c2) return c1 - c2;
+		}
+		return length1 - length2;
+	}
+
+	private static char charAt(String s1, String s2, String s3, int i) {
+		if (i < s1.length()) return s1.charAt(i);
+		i -= s1.length();
+		return (i < s2.length()) ? s2.charAt(i) : s3.charAt(i - s2.length());
+	}
+
+	private ImportGroup toGroup(Record record) {
+		String path = directories.get(record.directory) + record.name;
+		String[] fileSuffixes = suffixes.get(record.suffix);
+		List<File> files = new ArrayList<File>(fileSuffixes.length);
+		for (int i = 0; i < fileSuffixes.length; i++) {
+			files.add(new SourceFile(path + fileSuffixes[i], record.size[i], record.modified[i]));
+		}
+		Date date = (record.dateTime == NO_DATE) ? null : new Date(record.dateTime);
+		return new ImportGroup(files, record.dcfNumber, date);
+	}
+
+	/**
+	 * A sorted sequence of groups, which is merged with the other sequences while iterating.
+	 */
+	private abstract class Cursor implements Comparable<Cursor> {
+		Record current = null;
+
+		/**
+		 * Moves to the next group of the sequence.
+		 * @return false, if the sequence has no more groups
+		 */
+		abstract boolean next();
+
+		public int compareTo(Cursor other) {
+			return compare(current, other.current);
+		}
+	}
+
+	/**
+	 * The sorted groups in memory.
+	 */
+	private class MemoryCursor extends Cursor {
+		private final int[] sorted = order;
+		private int position = 0;
+
+		boolean next() {
+			if (position >= sorted.length) return false;
+			int i = sorted[position++];
+			Record record = new Record();
+			record.sequence = spilled + i;
+			record.directory = directory[i];
+			record.name = name[i];
+			record.suffix = suffix[i];
+			record.dcfNumber = dcfNumber[i];
+			record.dateTime = dateTime[i];
+			record.size = Arrays.copyOfRange(size, firstFile[i], firstFile[i + 1]);
+			record.modified = Arrays.copyOfRange(modified, firstFile[i], firstFile[i + 1]);
+			current = record;
+			return true;
+		}
+	}
+
+	/**
+	 * The groups of a run that was written to disk.
+	 */
+	private class RunCursor extends Cursor {
+		private final File run;
+		private DataInputStream in;
+
+		RunCursor(File run) {
+			this.run = run;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to read image groups from temporary file " + run, e);
+			}
+		}
+
+		boolean next() {
+			if (in == null) return false;
+			try {
+				Record record = new Record();
+				record.sequence = in.readLong();
+				record.directory = in.readInt();
+				record.name = in.readUTF();
+				record.suffix = in.readInt();
+				record.dcfNumber = in.readInt();
+				record.dateTime = in.readLong();
+				int files = suffixes.get(record.suffix).length;
+				record.size = new long[files];
+				record.modified = new long[files];
+				for (int f = 0; f < files; f++) {
+					record.size[f] = in.readLong();
+					record.modified[f] = in.readLong();
+				}
+				current = record;
+				return true;
+			} catch (EOFException e) {
+				close();
+				return false;
+			} catch (IOException e) {
+				close();
+				throw new IllegalStateException("Unable to read image groups from temporary file " + run, e);
+			}
+		}
+
+		private void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.log(Level.FINE, "Unable to close temporary file " + run, e);
+			}
+			in = null;
+		}
+	}
+}
@@ -1,15 +1,18 @@
 package com.github.ythri.photoimport.core;
 
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Calendar;
 import java.util.Locale;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 import java.io.File;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 
 import com.drew.metadata.Metadata;
 import com.drew.imaging.ImageMetadataReader;
@@ -19,36 +22,104 @@ import com.drew.metadata.exif.ExifIFD0Directory;
 public class ImportGroup implements Comparable<ImportGroup> {
 	private static final Logger log = Logger.getLogger(ImportGroup.class.getName());
 
-	private static Locale locale = Locale.getDefault();
+	/**
+	 * Names of all properties of an image group that can be used as variables.
+	 */
+	public static final List<String> PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+		"year", "month", "day", "hour", "minute", "second", "monthname", "dayname", "monthshortname", 
+		"dayshortname", "filename", "dcfpathnumber", "dcffilenumber", "dcfnumber"));
+
+	/**
+	 * Names of all properties that are derived from the DateTime of an image group. Only if one of 
+	 * these is used, the EXIF data of the files needs to be read.
+	 */
+	public static final List<String> DATE_PROPERTIES = PROPERTIES.subList(0, 10);
+
+	/**
+	 * Orders image groups by the path of their first file, which is the order of the DCF numbers 
+	 * on DCF file systems. This order can be used if the DateTime of the groups is not needed.
+	 */
+	public static final Comparator<ImportGroup> PATH_ORDER = new Comparator<ImportGroup>() {
+		public int compare(ImportGroup a, ImportGroup b) {
+			return a.files.get(0).compareTo(b.files.get(0));
+		}
+	};
+
+	private static DateTimeFormatter monthName;
+	private static DateTimeFormatter dayName;
+	private static DateTimeFormatter monthShortName;
+	private static DateTimeFormatter dayShortName;
+	static {
+		setLocale(Locale.getDefault());
+	}
 	private static List<String> exifExtensions = null;
+	private static MetadataCache cache = null;
 
 	public static void setLocale(Locale locale) {
-		ImportGroup.locale = locale;
+		monthName = DateTimeFormatter.ofPattern("MMMM", locale);
+		dayName = DateTimeFormatter.ofPattern("EEEE", locale);
+		monthShortName = DateTimeFormatter.ofPattern("MMM", locale);
+		dayShortName = DateTimeFormatter.ofPattern("EEE", locale);
 	}
 
 	public static void getExifFromExtensions(List<String> extensions) {
 		exifExtensions = extensions;
 	}
 
+	/**
+	 * Sets the cache that is used to look up the DateTime of files before reading their metadata.
+	 * A value of {@code null} disables the cache.
+	 */
+	public static void setMetadataCache(MetadataCache cache) {
+		ImportGroup.cache = cache;
+	}
+
 	private List<File> files;
-	private Date dateTime;
-	private Map<String, String> properties = new HashMap<String, String>();
+	private int dcfDirNumber = -1;
+	private int dcfFileNumber = -1;
+	private Date dateTime = null;
+	private LocalDateTime localDateTime = null;
+	private boolean dateTimeRead = false;
 
 	/**
+	 * Creates an image group. The group does not read any metadata until its DateTime or one of 
+	 * the date properties is requested for the first time.
+	 * <p>
 	 * Note: This methods expects all files to be in the same directory and have the same base name 
 	 * (just the extension may differ).
 	 */
 	public ImportGroup(List<File> files, boolean dcf) {
 		this.files = files;
-		properties.put("filename", FileUtils.getBaseName(files.get(0)));
 		if (dcf) {
-			int dcfDirNumber = Integer.parseInt(files.get(0).getParentFile().getName().substring(0, 3));
-			int dcfFileNumber = Integer.parseInt(files.get(0).getName().substring(4, 8));
-			int dcfNumber = 10000 * dcfDirNumber + dcfFileNumber;
-			properties.put("dcfpathnumber", String.valueOf(dcfDirNumber));
-			properties.put("dcffilenumber", String.valueOf(dcfFileNumber));
-			properties.put("dcfnumber", String.valueOf(dcfNumber));
+			dcfDirNumber = Integer.parseInt(files.get(0).getParentFile().getName().substring(0, 3));
+			dcfFileNumber = Integer.parseInt(files.get(0).getName().substring(4, 8));
 		}
+	}
+
+	/**
+	 * Creates an image group whose DCF number and DateTime are already known, e.g., when it is 
+	 * restored from a {@link GroupStore}.
+	 * @param dcfNumber DCF number of the group, or -1 if it has none
+	 * @param dateTime DateTime of the group, or {@code null} if it was not read yet
+	 */
+	ImportGroup(List<File> files, int dcfNumber, Date dateTime) {
+		this.files = files;
+		if (dcfNumber >= 0) {
+			dcfDirNumber = dcfNumber / 10000;
+			dcfFileNumber = dcfNumber % 10000;
+		}
+		if (dateTime != null) {
+			this.dateTime = dateTime;
+			localDateTime = LocalDateTime.ofInstant(dateTime.toInstant(), ZoneId.systemDefault());
+			dateTimeRead = true;
+		}
+	}
+
+	/**
+	 * Reads the DateTime of the group from the EXIF data of its files, if it was not read before.
+	 */
+	private synchronized void readDateTime() {
+		if (dateTimeRead) return;
 		File first = null;
 		dateTime = null;
 		if (exifExtensions != null) {
@@ -58,7 +129,9 @@ public class ImportGroup implements Comparable<ImportGroup> {
 						if (first == null) {
 							first = file;
 						}
+						long start = System.nanoTime();
 						readMetadata(file);
+						Metrics.record(Metrics.EXIF, start);
 					}
 				}
 			}
@@ -67,50 +140,107 @@ public class ImportGroup implements Comparable<ImportGroup> {
 			dateTime = new Date(((first == null) ? files.get(0) : first).lastModified());
 			log.warning("Could not read DateTime from EXIF, using lastModified instead.");
 		}
-		putDateTimeProperties();
+		localDateTime = LocalDateTime.ofInstant(dateTime.toInstant(), ZoneId.systemDefault());
+		dateTimeRead = true;
 	}
 
 	private void readMetadata(File file) {
-		try {
-			Metadata metadata = ImageMetadataReader.readMetadata(file);
-			ExifSubIFDDirectory subIfdDir = metadata.getDirectory(ExifSubIFDDirectory.class);
-			ExifIFD0Directory ifd0Dir = metadata.getDirectory(ExifIFD0Directory.class);
-
-			dateTime = subIfdDir.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
-			if (dateTime == null) dateTime = subIfdDir.getDate(ExifSubIFDDirectory.TAG_DATETIME_DIGITIZED);
-		} catch (Exception e) {
-			log.log(Level.WARNING, "Error reading metadata from file " + file.toString(), e);
+		if (cache != null && cache.contains(file)) {
+			dateTime = cache.get(file);
+			return;
 		}
-	}
 
-	private void putDateTimeProperties() {
-		properties.put("year", String.format("%tY", dateTime));
-		properties.put("month", String.format("%tm", dateTime));
-		properties.put("day", String.format("%td", dateTime));
-		properties.put("hour", String.format("%tH", dateTime));
-		properties.put("minute", String.format("%tM", dateTime));
-		properties.put("second", String.format("%tS", dateTime));
-		Calendar dtCal = Calendar.getInstance();
-		dtCal.setTime(dateTime);
-		properties.put("monthname", dtCal.getDisplayName(Calendar.MONTH, Calendar.LONG, locale));
-		properties.put("dayname", dtCal.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.LONG, locale));
-		properties.put("monthshortname", dtCal.getDisplayName(Calendar.MONTH, Calendar.SHORT, locale));
-		properties.put("dayshortname", dtCal.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.SHORT, locale));
+		Date date = ExifDateReader.readDate(file);
+		if (date == null) {
+			// the prefix of the file did not contain the date, so read the full metadata
+			ExifDateReader.recordFullRead(file);
+			try {
+				Metadata metadata = ImageMetadataReader.readMetadata(file);
+				ExifSubIFDDirectory subIfdDir = metadata.getDirectory(ExifSubIFDDirectory.class);
+				ExifIFD0Directory ifd0Dir = metadata.getDirectory(ExifIFD0Directory.class);
+
+				date = subIfdDir.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
+				if (date == null) date = subIfdDir.getDate(ExifSubIFDDirectory.TAG_DATETIME_DIGITIZED);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Error reading metadata from file " + file.toString(), e);
+				return;
+			}
+		}
+		dateTime = date;
+		if (cache != null) {
+			cache.put(file, date);
+		}
 	}
 
+	/**
+	 * Returns the value of a property of the group. The value is computed when it is requested, 
+	 * and only the date properties require the EXIF data of the group to be read.
+	 * @param variable lower case name of the property
+	 * @return value of the property, or {@code null} if the group has no such property
+	 */
 	public String getProperty(String variable) {
-		return properties.get(variable);
+		switch (variable) {
+			case "filename": return FileUtils.getBaseName(files.get(0));
+			case "dcfpathnumber": return (dcfDirNumber < 0) ? null : String.valueOf(dcfDirNumber);
+			case "dcffilenumber": return (dcfFileNumber < 0) ? null : String.valueOf(dcfFileNumber);
+			case "dcfnumber": return (dcfDirNumber < 0) ? null : String.valueOf(getDcfNumber());
+		}
+		if (!DATE_PROPERTIES.contains(variable)) return null;
+
+		readDateTime();
+		switch (variable) {
+			case "year": return pad(localDateTime.getYear(), 4);
+			case "month": return pad(localDateTime.getMonthValue(), 2);
+			case "day": return pad(localDateTime.getDayOfMonth(), 2);
+			case "hour": return pad(localDateTime.getHour(), 2);
+			case "minute": return pad(localDateTime.getMinute(), 2);
+			case "second": return pad(localDateTime.getSecond(), 2);
+			case "monthname": return monthName.format(localDateTime);
+			case "dayname": return dayName.format(localDateTime);
+			case "monthshortname": return monthShortName.format(localDateTime);
+			default: return dayShortName.format(localDateTime);
+		}
 	}
 
+	private static String pad(int value, int digits) {
+		String s = String.valueOf(value);
+		while (s.length() < digits) {
+			s = "0" + s;
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the DCF number of the group, which consists of its DCF directory number and its DCF 
+	 * file number.
+	 * @return DCF number, or -1 if the group is not from a DCF file system
+	 */
+	public int getDcfNumber() {
+		return (dcfDirNumber < 0) ? -1 : 10000 * dcfDirNumber + dcfFileNumber;
+	}
+
+	/**
+	 * Returns the DateTime of the group, reading the EXIF data of its files if necessary.
+	 * @return DateTime of the group
+	 */
 	public Date getDateTime() {
+		readDateTime();
 		return dateTime;
 	}
 
+	/**
+	 * Returns the DateTime of the group only if it was already read.
+	 * @return DateTime of the group, or {@code null} if its EXIF data was not read yet
+	 */
+	public synchronized Date getDateTimeIfRead() {
+		return dateTimeRead ? dateTime : null;
+	}
+
 	public List<File> getFiles() {
 		return files;
 	}
 
 	public int compareTo(ImportGroup other) {
-		return dateTime.compareTo(other.dateTime);
+		return getDateTime().compareTo(other.getDateTime());
 	}
 }
@@ -0,0 +1,472 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * This class implements a persistent ledger of the files that were imported to a target. Each
+ * imported source file is identified by its file name (which contains its DCF number on DCF file
+ * systems), its size and its modification time; these values are known from the directory listing
+ * alone, so known files can be skipped before any EXIF data is read. Together with the identity,
+ * the ledger stores the DCF number and DateTime of the group (if it was read) and the destination of the file.
+ * <p>
+ * The ledger file is an append-only sequence of binary records, so recording an import never
+ * rewrites existing entries. Next to it, an index file holds the hashes of the identities of all
+ * records, sorted, together with the offsets of the records in the ledger. The index is read in
+ * blocks of {@link #BLOCK_ENTRIES} entries, of which only the first hash is kept in memory, so a
+ * lookup reads a single block of the index and the record with the same hash from the ledger.
+ * Loading the ledger only reads the records that were appended after the index was written, e.g.,
+ * by an interrupted import; these are kept in memory and merged into the index when the ledger is
+ * closed.
+ */
+public class ImportLedger {
+	private static final Logger log = Logger.getLogger(ImportLedger.class.getName());
+
+	/**
+	 * Name of the ledger file in the root directory of a target.
+	 */
+	public static final String FILE_NAME = ".photoimport-ledger";
+
+	/**
+	 * Number of entries of the index that are read at once.
+	 */
+	static final int BLOCK_ENTRIES = 256;
+
+	private static final int MAGIC = 0x50494C47;
+	private static final int INDEX_MAGIC = 0x50494C58;
+	private static final int INDEX_HEADER = 16;
+	private static final int ENTRY_SIZE = 16;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private final File file;
+	private final File indexFile;
+
+	/** identities of the records that are not contained in the index file */
+	private final Set<String> recent = new HashSet<String>();
+	/** hashes and offsets of the records that are not contained in the index file */
+	private final List<long[]> pending = new ArrayList<long[]>();
+
+	private FileChannel index = null;
+	private int indexed = 0;
+	private long[] fences = new long[0];
+	/** length of the complete records in the ledger file */
+	private long length = 0;
+	private boolean loaded = false;
+	private boolean unknown = false;
+	private RandomAccessFile reader = null;
+	private DataOutputStream out = null;
+
+	/**
+	 * Creates a ledger that is stored in the given file.
+	 * @param file ledger file
+	 */
+	public ImportLedger(File file) {
+		this.file = file;
+		this.indexFile = new File(file.getPath() + ".index");
+	}
+
+	/**
+	 * Loads the ledger. The records that are not contained in the index are read from the ledger
+	 * file; if the index is missing or does not match the ledger, these are all records. A
+	 * truncated last record, e.g., from an interrupted import, is ignored and overwritten by the
+	 * next record.
+	 */
+	public synchronized void load() {
+		close();
+		recent.clear();
+		pending.clear();
+		length = 0;
+		unknown = false;
+		loaded = true;
+		if (!file.exists()) return;
+		long start = openIndex();
+		scan(start);
+		log.info("Loaded " + (indexed + recent.size()) + " entries from import ledger " + file
+			+ ", " + recent.size() + " of them not indexed");
+	}
+
+	/**
+	 * Checks whether the given source file was already imported.
+	 * @param source source file
+	 * @return true, if the ledger contains a file with the same name, size and modification time
+	 */
+	public synchronized boolean contains(File source) {
+		if (!loaded) {
+			load();
+		}
+		String key = key(source.getName(), source.length(), source.lastModified());
+		if (recent.contains(key)) return true;
+		if (indexed == 0) return false;
+		long hash = hash(key);
+		try {
+			// the entries with the same hash may start in the block before the first larger fence
+			int block = 0;
+			int low = 0, high = fences.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (fences[mid] < hash) {
+					block = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			for (; block < fences.length; block++) {
+				long[] entries = readBlock(block);
+				for (int i = 0; i < entries.length; i += 2) {
+					if (entries[i] > hash) return false;
+					if (entries[i] == hash && matches(entries[i + 1], key)) return true;
+				}
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to read import ledger " + file, e);
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether all given source files were already imported.
+	 * @param sources source files, e.g., the files of an image group
+	 * @return true, if the ledger contains all of the files
+	 */
+	public boolean containsAll(List<File> sources) {
+		for (File source : sources) {
+			if (!contains(source)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records that a source file was imported to the given destination. The record is appended
+	 * to the ledger file immediately.
+	 * @param transfer transfer of the imported source file
+	 * @param destination destination the file was copied to
+	 */
+	public synchronized void record(Transfer transfer, File destination) {
+		File source = transfer.getSource();
+		if (!loaded) {
+			load();
+		}
+		if (unknown) {
+			log.warning("Not recording " + source + " in import ledger " + file + " with unknown format.");
+			return;
+		}
+		try {
+			if (out == null) {
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				// drop a truncated last record of an interrupted import
+				channel.truncate(length);
+				channel.position(length);
+				out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+				if (length == 0) {
+					out.writeInt(MAGIC);
+					out.flush();
+					length = out.size();
+				}
+			}
+			int before = out.size();
+			String key = key(source.getName(), source.length(), source.lastModified());
+			out.writeUTF(source.getName());
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.writeInt(transfer.getDcfNumber());
+			out.writeLong((transfer.getDateTime() == null) ? NO_DATE : transfer.getDateTime().getTime());
+			out.writeUTF(destination.getPath());
+			out.flush();
+			recent.add(key);
+			pending.add(new long[] { hash(key), length });
+			length += out.size() - before;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to write to import ledger " + file, e);
+		}
+	}
+
+	/**
+	 * Closes the ledger file and merges the records that are not indexed yet into the index. The
+	 * ledger is loaded again when it is used afterwards.
+	 */
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to close import ledger " + file, e);
+			}
+			out = null;
+		}
+		if (!pending.isEmpty() && !unknown) {
+			writeIndex();
+		}
+		closeIndex();
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {}
+			reader = null;
+		}
+		loaded = false;
+	}
+
+	/**
+	 * Opens the index file and reads the first hash of each block.
+	 * @return length of the ledger that is covered by the index, or 0 if there is no valid index
+	 */
+	private long openIndex() {
+		if (!indexFile.exists()) return 0;
+		try {
+			index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+			ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+			readFully(header, 0);
+			int count = header.getInt(4);
+			long covered = header.getLong(8);
+			if (header.getInt(0) != INDEX_MAGIC || count < 0 || index.size() != INDEX_HEADER + (long) count * ENTRY_SIZE
+					|| covered > file.length()) {
+				log.warning("Ignoring index " + indexFile + ", which does not match the import ledger.");
+				closeIndex();
+				return 0;
+			}
+			indexed = count;
+			fences = new long[(count + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES];
+			ByteBuffer hash = ByteBuffer.allocate(8);
+			for (int block = 0; block < fences.length; block++) {
+				hash.clear();
+				readFully(hash, INDEX_HEADER + (long) block * BLOCK_ENTRIES * ENTRY_SIZE);
+				fences[block] = hash.getLong(0);
+			}
+			return covered;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to read index " + indexFile, e);
+			closeIndex();
+			return 0;
+		}
+	}
+
+	private void closeIndex() {
+		if (index != null) {
+			try {
+				index.close();
+			} catch (IOException e) {}
+			index = null;
+		}
+		indexed = 0;
+		fences = new long[0];
+	}
+
+	/**
+	 * Reads the records of the ledger file after the given offset into memory.
+	 */
+	private void scan(long start) {
+		CountingInputStream counter = null;
+		try {
+			counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+			DataInputStream in = new DataInputStream(counter);
+			if (in.readInt() != MAGIC) {
+				log.warning("Ignoring import ledger " + file + " with unknown format.");
+				unknown = true;
+				return;
+			}
+			while (counter.count < start) {
+				if (in.skip(start - counter.count) <= 0) throw new EOFException();
+			}
+			length = counter.count;
+			while (true) {
+				long offset = counter.count;
+				String name = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				in.readInt();		// DCF number
+				in.readLong();		// DateTime
+				in.readUTF();		// destination
+				String key = key(name, size, modified);
+				recent.add(key);
+				pending.add(new long[] { hash(key), offset });
+				length = counter.count;
+			}
+		} catch (EOFException e) {
+			// end of the ledger
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to read import ledger " + file, e);
+		} finally {
+			if (counter != null) {
+				try {
+					counter.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Reads the hashes and offsets of a block of the index.
+	 * @return alternating hashes and offsets of the entries of the block
+	 */
+	private long[] readBlock(int block) throws IOException {
+		int count = Math.min(BLOCK_ENTRIES, indexed - block * BLOCK_ENTRIES);
+		ByteBuffer buffer = ByteBuffer.allocate(count * ENTRY_SIZE);
+		readFully(buffer, INDEX_HEADER + (long) block * BLOCK_ENTRIES * ENTRY_SIZE);
+		buffer.flip();
+		long[] entries = new long[2 * count];
+		buffer.asLongBuffer().get(entries);
+		return entries;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (index.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+		}
+	}
+
+	/**
+	 * Checks whether the record at the given offset of the ledger file has the given identity.
+	 */
+	private boolean matches(long offset, String key) throws IOException {
+		if (offset >= length) return false;
+		if (reader == null) {
+			reader = new RandomAccessFile(file, "r");
+		}
+		reader.seek(offset);
+		return key.equals(key(reader.readUTF(), reader.readLong(), reader.readLong()));
+	}
+
+	/**
+	 * Writes a new index file with the entries of the old index and the records that were not
+	 * indexed yet, and replaces the old index with it.
+	 */
+	private void writeIndex() {
+		Collections.sort(pending, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return (a[0] != b[0]) ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+			}
+		});
+		File temp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream writer = null;
+		DataInputStream old = null;
+		try {
+			writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			writer.writeInt(INDEX_MAGIC);
+			writer.writeInt(indexed + pending.size());
+			writer.writeLong(length);
+			if (indexed > 0) {
+				old = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+				old.skipBytes(INDEX_HEADER);
+			}
+			int i = 0, j = 0;
+			long hash = 0, offset = 0;
+			if (i < indexed) {
+				hash = old.readLong();
+				offset = old.readLong();
+			}
+			while (i < indexed || j < pending.size()) {
+				if (j == pending.size() || i < indexed && hash <= pending.get(j)[0]) {
+					writer.writeLong(hash);
+					writer.writeLong(offset);
+					if (++i < indexed) {
+						hash = old.readLong();
+						offset = old.readLong();
+					}
+				} else {
+					writer.writeLong(pending.get(j)[0]);
+					writer.writeLong(pending.get(j)[1]);
+					j++;
+				}
+			}
+			writer.close();
+			writer = null;
+			if (old != null) {
+				old.close();
+				old = null;
+			}
+			closeIndex();
+			Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			pending.clear();
+			recent.clear();
+			openIndex();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to write index " + indexFile, e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {}
+			}
+			if (old != null) {
+				try {
+					old.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	private static String key(String name, long size, long modified) {
+		return name + "/" + size + "/" + modified;
+	}
+
+	/**
+	 * Computes the 64-bit FNV-1a hash of an identity.
+	 */
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * An input stream that counts the bytes that were read or skipped, i.e., the current offset
+	 * in the ledger file.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
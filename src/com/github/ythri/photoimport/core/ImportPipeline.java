@@ -0,0 +1,139 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class streams the image groups found in the source directory to the copy task while the
+ * search is still running. The source is searched by a separate thread, which passes the groups
+ * through a bounded queue; if the copies fall behind, the search waits until there is space in
+ * the queue again. The copy task only takes the next group from the queue once less than its own
+ * capacity of groups are being copied (see {@link FanOutCopyTask#setCapacity(int)}), so a slow
+ * target also stops the search. Thus, the first files are copied as soon as the first directory
+ * was searched, and at most {@code capacity} groups that were found but not yet resolved, plus the
+ * groups that are being copied, are kept in memory.
+ * <p>
+ * Since the complete list of groups is never known, the groups are not sorted globally. Instead,
+ * the groups of each source directory are sorted by their DateTime, and the directories are
+ * searched in the order of their names, i.e., their DCF directory numbers. On a camera card, this
+ * order matches the DateTime order, so the suffixes of the destination names are assigned in the
+ * same order as in a regular import.
+ */
+public class ImportPipeline implements Iterable<ImportGroup> {
+	/**
+	 * Marks the end of the search in the queue.
+	 */
+	private static final ImportGroup END = new ImportGroup(new ArrayList<File>(), false);
+
+	private final ImportSource source;
+	private final BlockingQueue<ImportGroup> queue;
+	private final AtomicInteger count = new AtomicInteger();
+	private volatile RuntimeException failure = null;
+
+	/**
+	 * Creates a pipeline for the given source.
+	 * @param source source that is searched for image groups
+	 * @param capacity maximal number of groups waiting to be copied
+	 */
+	public ImportPipeline(ImportSource source, int capacity) {
+		this.source = source;
+		this.queue = new ArrayBlockingQueue<ImportGroup>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Searches the source and copies all found image groups with the given copy task. This method
+	 * returns when all groups were copied.
+	 * @param copyTask copy task that copies the groups to the targets
+	 */
+	public void run(FanOutCopyTask copyTask) {
+		Thread scanner = new Thread(new Runnable() {
+			public void run() {
+				try {
+					source.findPhotos(new ImportSource.Listener() {
+						public void found(List<ImportGroup> groups) throws InterruptedException {
+							for (ImportGroup group : groups) {
+								queue.put(group);
+								count.incrementAndGet();
+							}
+						}
+					});
+				} catch (InterruptedException e) {
+					// the copies were aborted
+				} catch (RuntimeException e) {
+					failure = e;
+				} finally {
+					try {
+						queue.put(END);
+					} catch (InterruptedException e) {
+						// the copies were aborted, so nobody waits for the end of the search
+					}
+				}
+			}
+		}, "photoimport-scanner");
+		scanner.start();
+
+		try {
+			copyTask.copyFiles(this);
+		} finally {
+			scanner.interrupt();
+			try {
+				scanner.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Returns the number of image groups that were found so far.
+	 * @return number of found groups
+	 */
+	public int getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns an iterator over the found image groups, whose methods block until the next group
+	 * was found or the search has ended. This method may only be called once.
+	 */
+	public Iterator<ImportGroup> iterator() {
+		return new Iterator<ImportGroup>() {
+			private ImportGroup next = null;
+
+			public boolean hasNext() {
+				if (next == null) {
+					try {
+						next = queue.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						next = END;
+					}
+				}
+				return next != END;
+			}
+
+			public ImportGroup next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ImportGroup group = next;
+				next = null;
+				return group;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
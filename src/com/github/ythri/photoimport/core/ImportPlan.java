@@ -0,0 +1,139 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * This class reads and writes import plans. A plan contains the resolved destinations of all
+ * files of an import, such that it can be reviewed before any file is copied, and then be executed
+ * without searching the source or reading EXIF data again.
+ * <p>
+ * The plan is a text file in the format of the {@link CopyJournal}: each line consists of
+ * tab-separated fields, namely {@code P}, the source, its size, the DCF number and DateTime of its
+ * group, the target name, the destination and the existing file the destination is linked to, or
+ * {@code -} if the source is copied, followed by a final {@code .} field. The source and
+ * destination are stored as absolute paths, such that the plan can be applied from any working 
+ * directory, and all fields are escaped like in the journal. Lines starting with {@code #} are 
+ * comments, which summarize the plan for each target.
+ */
+public class ImportPlan {
+	private static final Logger log = Logger.getLogger(ImportPlan.class.getName());
+
+	private ImportPlan() {}
+
+	/**
+	 * Writes the given transfers to a plan file.
+	 * @param file plan file
+	 * @param transfers resolved transfers, in the order in which they should be executed
+	 * @throws IOException if the plan cannot be written
+	 */
+	public static void write(File file, List<Transfer> transfers) throws IOException {
+		Map<String, long[]> summary = new LinkedHashMap<String, long[]>();
+		for (Transfer transfer : transfers) {
+			for (String target : transfer.getDestinations().keySet()) {
+				if (!summary.containsKey(target)) {
+					summary.put(target, new long[2]);
+				}
+				summary.get(target)[0]++;
+				summary.get(target)[1] += transfer.getSource().length();
+			}
+		}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+		try {
+			out.write("# PhotoImport plan\n");
+			for (Map.Entry<String, long[]> target : summary.entrySet()) {
+				out.write("# " + target.getKey() + ": " + target.getValue()[0] + " files, " + target.getValue()[1] + " bytes\n");
+			}
+			for (Transfer transfer : transfers) {
+				for (Map.Entry<String, File> destination : transfer.getDestinations().entrySet()) {
+					out.write("P\t" + CopyJournal.escape(transfer.getSource().getAbsolutePath()) + "\t" 
+						+ transfer.getSource().length() + "\t" + transfer.getDcfNumber() + "\t"
+						+ ((transfer.getDateTime() == null) ? -1 : transfer.getDateTime().getTime()) + "\t"
+						+ CopyJournal.escape(destination.getKey()) + "\t" 
+						+ CopyJournal.escape(destination.getValue().getAbsolutePath()) + "\t" 
+						+ getLink(transfer, destination.getKey()) + "\t.\n");
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String getLink(Transfer transfer, String target) {
+		File existing = transfer.getLink(target);
+		return (existing == null) ? "-" : CopyJournal.escape(existing.getAbsolutePath());
+	}
+
+	/**
+	 * Reads the transfers from a plan file. Source files whose size differs from the size in the
+	 * plan were changed after the plan was written and are skipped.
+	 * @param file plan file
+	 * @return transfers in the order of the plan
+	 * @throws IOException if the plan cannot be read or is malformed
+	 */
+	public static List<Transfer> read(File file) throws IOException {
+		Map<String, Transfer> transfers = new LinkedHashMap<String, Transfer>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number++;
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] fields = line.split("\t");
+				if (fields.length != 9 || !fields[0].equals("P") || !fields[8].equals(".")) {
+					throw new IOException("Malformed line " + number + " in plan " + file);
+				}
+				String path = CopyJournal.unescape(fields[1]);
+				Transfer transfer = transfers.get(path);
+				if (transfers.containsKey(path) && transfer == null) {
+					// the source was skipped
+					continue;
+				} else if (transfer == null) {
+					File source = new File(path);
+					if (source.length() != Long.parseLong(fields[2])) {
+						log.warning("Skipping " + source + ", which was changed or removed after the plan was written.");
+						transfers.put(path, null);
+						continue;
+					}
+					long dateTime = Long.parseLong(fields[4]);
+					transfer = new Transfer(source, Integer.parseInt(fields[3]), (dateTime == -1) ? null : new Date(dateTime));
+					transfers.put(path, transfer);
+				}
+				String target = CopyJournal.unescape(fields[5]);
+				transfer.addDestination(target, new File(CopyJournal.unescape(fields[6])));
+				if (!fields[7].equals("-")) {
+					transfer.addLink(target, new File(CopyJournal.unescape(fields[7])));
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed plan " + file, e);
+		} finally {
+			in.close();
+		}
+
+		List<Transfer> result = new ArrayList<Transfer>(transfers.size());
+		for (Transfer transfer : transfers.values()) {
+			if (transfer != null) {
+				result.add(transfer);
+			}
+		}
+		return result;
+	}
+}
@@ -3,14 +3,33 @@ package com.github.ythri.photoimport.core;
 import com.github.ythri.photoimport.config.SourceConfig;
 
 import java.io.File;
-import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import java.util.Set;
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -24,8 +43,46 @@ public class ImportSource {
 	private Date end = null;
 	private Integer min = null;
 	private Integer max = null;
-	private FileFilter fileFilter = new ImportFileFilter();
-	private FileFilter dirFilter = new ImportDirectoryFilter();
+	private int threads = 1;
+	private int scanThreads = 1;
+	private boolean dateNeeded = true;
+	private Collection<ImportLedger> ledgers = null;
+	/**
+	 * Number of image groups before and after the range found by the binary search over the DCF 
+	 * numbers, whose DateTime is checked as well.
+	 */
+	private static final int DCF_MARGIN = 16;
+
+	/**
+	 * Image groups whose DateTime was read while searching the date range, which are reused when
+	 * the groups in the range are constructed.
+	 */
+	private Map<List<File>, ImportGroup> probed = new IdentityHashMap<List<File>, ImportGroup>();
+
+	/**
+	 * Margin between the modification time of a file and the begin of the date filter, which 
+	 * accounts for the missing time zone of the EXIF DateTime and for small camera clock errors.
+	 */
+	private static final long MTIME_MARGIN = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * Number of directories per scan thread, which are listed ahead of the directory whose files 
+	 * are added.
+	 */
+	private static final int LISTINGS_AHEAD = 16;
+
+	private final Pattern dcfFilePattern = Pattern.compile("[0-9A-Z_]{4}[0-9]{4}\\.[0-9A-Z_]+");
+	private final Pattern dcfDirPattern = Pattern.compile("[0-9]{3}[0-9A-Z_]{5}");
+
+	/**
+	 * Orders the file groups of a DCF directory by their DCF file number, i.e., the last four 
+	 * digits of the base name, independent of the free characters of the prefix.
+	 */
+	private static final Comparator<List<File>> DCF_FILE_ORDER = new Comparator<List<File>>() {
+		public int compare(List<File> a, List<File> b) {
+			return getDcfFileNumber(a) - getDcfFileNumber(b);
+		}
+	};
 
 	public void setSourceConfig(SourceConfig config) {
 		path = new File(config.path);
@@ -49,9 +106,11 @@ public class ImportSource {
 	 * {@code begin} and {@code end}. If the date filter was previously set, this method will 
 	 * override the old interval.
 	 * <p>
-	 * Note that this filter does not speed up the process of searching files, since it needs to 
-	 * check each file group for its datetime by reading its EXIF data. This is in contrast to the 
-	 * {@link #setDcfNumberFilter(Integer,Integer)}.
+	 * On DCF file systems, the DCF numbers grow with the datetime, so only the datetime of a few 
+	 * file groups is read to find the range of DCF numbers that satisfy the filter; the datetime of 
+	 * the groups outside of this range is never read. In the other search modes, groups whose files 
+	 * were all modified well before {@code begin} are skipped without reading their EXIF data, but 
+	 * the datetime of all remaining groups needs to be read.
 	 *
 	 * @param begin The minimal datetime the file should have. A value of {@code null} indicates 
 	 * that there is no lower bound on the datetime.
@@ -83,6 +142,66 @@ public class ImportSource {
 		this.max = max;
 	}
 
+	/**
+	 * Skips all image groups that were already imported to every one of the given ledgers. Since 
+	 * the ledgers identify files by their name, size and modification time, these groups are 
+	 * skipped before their EXIF data is read.
+	 *
+	 * @param ledgers The import ledgers of all active targets. A value of {@code null} disables 
+	 * the ledger filter.
+	 */
+	public void setLedgerFilter(Collection<ImportLedger> ledgers) {
+		this.ledgers = ledgers;
+	}
+
+	/**
+	 * Sets the number of threads that construct the image groups, i.e., that read the EXIF data of 
+	 * the found files. With a single thread, all groups are constructed on the calling thread. The 
+	 * order of the returned groups does not depend on the number of threads.
+	 *
+	 * @param threads The number of threads used to read the metadata. Values less than 1 are 
+	 * treated as 1.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Sets the number of threads that list the directories of the source concurrently in the 
+	 * recursive search mode. Sibling directories are then listed in parallel, while the found 
+	 * image groups are still processed in the same order as by a single thread.
+	 *
+	 * @param threads The number of threads used to list directories. Values less than 1 are 
+	 * treated as 1.
+	 */
+	public void setScanThreads(int threads) {
+		this.scanThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Specifies whether the DateTime of the image groups is needed, e.g., by the path templates of 
+	 * the targets. If it is not needed, the EXIF data of the files is not read while searching; the 
+	 * groups still read it lazily if their DateTime is requested later on.
+	 *
+	 * @param dateNeeded Whether the DateTime of all groups should be read during the search.
+	 */
+	public void setDateNeeded(boolean dateNeeded) {
+		this.dateNeeded = dateNeeded;
+	}
+
+	/**
+	 * Receives the image groups found in the source directory.
+	 */
+	public interface Listener {
+		/**
+		 * Called once for each directory that contains image groups satisfying all filters.
+		 * @param groups image groups of the directory, ordered by their DateTime if it is needed, or 
+		 * by their file names otherwise
+		 * @throws InterruptedException if the listener was interrupted, which ends the search
+		 */
+		void found(List<ImportGroup> groups) throws InterruptedException;
+	}
+
 	/**
 	 * Searches the source directory according to the search mode for all files that satisfy the 
 	 * specified filters and returns a list of all these files grouped by their base name.
@@ -90,102 +209,480 @@ public class ImportSource {
 	 * @return list of all file groups that were found
 	 */
 	public List<ImportGroup> findPhotos() {
-		List<ImportGroup> importGroups = new ArrayList<ImportGroup>();
+		final List<ImportGroup> importGroups = new ArrayList<ImportGroup>();
+		try {
+			findPhotos(new Listener() {
+				public void found(List<ImportGroup> groups) {
+					importGroups.addAll(groups);
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading metadata", e);
+		}
+		return importGroups;
+	}
 
-		if (searchMode == SourceConfig.SearchMode.dcf) {
-			File dcim = new File(path, "DCIM");
-			if (dcim.exists() && dcim.isDirectory()) {
-				for (File subdir : dcim.listFiles(dirFilter)) {
-					addFilesFromCurrentDirectory(subdir, importGroups);
+	/**
+	 * Searches the source directory like {@link #findPhotos()}, but adds the image groups to the 
+	 * given store, which keeps them in a compact form and may write them to disk.
+	 * 
+	 * @param store store that receives all file groups that were found
+	 */
+	public void findPhotos(GroupStore store) {
+		try {
+			findPhotos((Listener) store);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading metadata", e);
+		}
+	}
+
+	/**
+	 * Searches the source directory like {@link #findPhotos()}, but passes the image groups of 
+	 * each directory to the listener as soon as the directory was searched, such that they can be 
+	 * processed while the search continues. The directories are searched in the order of their 
+	 * names, which is the order of their DCF directory numbers on DCF file systems.
+	 * 
+	 * @param listener listener that receives the found image groups
+	 * @throws InterruptedException if the search was interrupted
+	 */
+	public void findPhotos(Listener listener) throws InterruptedException {
+		ExecutorService executor = (dateNeeded && threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+		int count = 0;
+		try {
+			if (searchMode == SourceConfig.SearchMode.dcf) {
+				Path dcim = path.toPath().resolve("DCIM");
+				if (Files.isDirectory(dcim)) {
+					count += addDcfFiles(list(dcim, false, true).directories, executor, listener);
+				} else {
+					log.warning("DCIM directory does not exist");
 				}
+			} else if (searchMode == SourceConfig.SearchMode.single) {
+				count += addFiles(list(path.toPath(), true, false).files, executor, listener);
+			} else if (scanThreads > 1) {
+				count += addFilesInParallel(path.toPath(), executor, listener);
 			} else {
-				log.warning("DCIM directory does not exist");
+				count += addFilesRecursively(path.toPath(), executor, listener);
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
 			}
-		} else if (searchMode == SourceConfig.SearchMode.single) {
-			addFilesFromCurrentDirectory(path, importGroups);
-		} else {
-			addFilesRecursively(path, importGroups);
 		}
+		Metrics.scanComplete();
 
-		if (importGroups.size() == 0) {
+		if (count == 0) {
 			log.warning("No images found in source directory");
 		}
+	}
+
+	private List<ImportGroup> filterByDate(List<ImportGroup> groups) {
+		List<ImportGroup> importGroups = new ArrayList<ImportGroup>();
+		for (ImportGroup group : groups) {
+			Date dateTime = group.getDateTime();
+			if (begin == null || dateTime.compareTo(begin) >= 0) {
+				if (end == null || dateTime.compareTo(end) <= 0) {
+					importGroups.add(group);
+				}
+			}
+		}
 		return importGroups;
 	}
 
-	private void addFilesRecursively(File directory, List<ImportGroup> importGroups) {
-		addFilesFromCurrentDirectory(directory, importGroups);
+	/**
+	 * Constructs an image group for each list of files. If an executor is given, the EXIF data of 
+	 * the groups is read concurrently by its bounded worker pool; the returned list always has 
+	 * the same order as the given file groups.
+	 */
+	private List<ImportGroup> createGroups(List<List<File>> fileGroups, ExecutorService executor) throws InterruptedException {
+		final boolean dcf = searchMode == SourceConfig.SearchMode.dcf;
+		List<ImportGroup> groups = new ArrayList<ImportGroup>(fileGroups.size());
+		if (executor == null || fileGroups.size() <= 1) {
+			for (List<File> files : fileGroups) {
+				ImportGroup group = probed.get(files);
+				groups.add((group != null) ? group : new ImportGroup(files, dcf));
+			}
+			return groups;
+		}
+
+		List<Callable<ImportGroup>> tasks = new ArrayList<Callable<ImportGroup>>(fileGroups.size());
+		for (final List<File> files : fileGroups) {
+			tasks.add(new Callable<ImportGroup>() {
+				public ImportGroup call() {
+					ImportGroup group = probed.get(files);
+					if (group == null) {
+						group = new ImportGroup(files, dcf);
+						group.getDateTime();
+					}
+					return group;
+				}
+			});
+		}
+		try {
+			for (Future<ImportGroup> future : executor.invokeAll(tasks)) {
+				groups.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		return groups;
+	}
+
+	private int addFilesRecursively(Path directory, ExecutorService executor, Listener listener) throws InterruptedException {
+		Listing listing = list(directory, true, true);
+		int count = addFiles(listing.files, executor, listener);
 
 		// recursively check all subdirectories
-		for (File subdir : directory.listFiles(dirFilter)) {
-			addFilesRecursively(subdir, importGroups);
+		for (Path subdir : listing.directories) {
+			count += addFilesRecursively(subdir, executor, listener);
+		}
+		return count;
+	}
+
+	/**
+	 * Searches the directory tree like {@link #addFilesRecursively(Path, ExecutorService, Listener)}, 
+	 * but lists the directories with a fork-join pool of {@code scanThreads} workers. The calling 
+	 * thread consumes the listings in depth-first order and keeps the pool busy with the next 
+	 * directories in this order, but at most {@link #LISTINGS_AHEAD} directories per scan thread are
+	 * listed and not yet consumed at any time, so the pool never runs far ahead of the search.
+	 */
+	private int addFilesInParallel(Path root, ExecutorService executor, Listener listener) throws InterruptedException {
+		ForkJoinPool pool = new ForkJoinPool(scanThreads);
+		int window = scanThreads * LISTINGS_AHEAD;
+		try {
+			// remaining directories in depth-first order
+			LinkedList<ListTask> tasks = new LinkedList<ListTask>();
+			tasks.add(new ListTask(root));
+			int pending = 0;
+			int count = 0;
+			while (!tasks.isEmpty()) {
+				for (Iterator<ListTask> it = tasks.iterator(); it.hasNext() && pending < window; ) {
+					ListTask task = it.next();
+					if (!task.submitted) {
+						pool.execute(task);
+						task.submitted = true;
+						pending++;
+					}
+				}
+				ListTask task = tasks.removeFirst();
+				Listing listing;
+				if (task.submitted) {
+					listing = getListing(task);
+					pending--;
+				} else {
+					listing = list(task.directory, true, true);
+				}
+				count += addFiles(listing.files, executor, listener);
+				for (int i = listing.directories.size() - 1; i >= 0; i--) {
+					tasks.addFirst(new ListTask(listing.directories.get(i)));
+				}
+			}
+			return count;
+		} finally {
+			pool.shutdownNow();
 		}
 	}
 
-	private void addFilesFromCurrentDirectory(File directory, List<ImportGroup> importGroups) {
-		// group all matching files by their basename
-		Map<String, List<File>> groups = new HashMap<String, List<File>>();
-		for (File file : directory.listFiles(fileFilter)) {
+	private Listing getListing(ListTask task) throws InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Lists a directory in the recursive search mode.
+	 */
+	private class ListTask extends RecursiveTask<Listing> {
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		/** whether the task was submitted to the pool; only accessed by the searching thread */
+		private boolean submitted = false;
+
+		ListTask(Path directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		protected Listing compute() {
+			return list(directory, true, true);
+		}
+	}
+
+	/**
+	 * Searches the given DCF directories. If a date filter is set, all directories are listed 
+	 * first, and the range of image groups whose DateTime may satisfy the filter is determined by 
+	 * {@link #findDateRange(List)}; only the groups in this range are read afterwards.
+	 */
+	private int addDcfFiles(List<Path> directories, ExecutorService executor, Listener listener) throws InterruptedException {
+		int count = 0;
+		if (begin == null && end == null) {
+			for (Path subdir : directories) {
+				count += addGroups(groupByBaseName(list(subdir, true, false).files), executor, listener);
+			}
+			return count;
+		}
+
+		List<List<List<File>>> directoryGroups = new ArrayList<List<List<File>>>(directories.size());
+		List<List<File>> allGroups = new ArrayList<List<File>>();
+		for (Path subdir : directories) {
+			List<List<File>> groups = groupByBaseName(list(subdir, true, false).files);
+			// the listing is ordered by name, but the prefix of the names may differ, e.g., for 
+			// IMG_0003.JPG, _MG_0005.JPG and custom prefixes
+			Collections.sort(groups, DCF_FILE_ORDER);
+			directoryGroups.add(groups);
+			allGroups.addAll(groups);
+		}
+		int[] range = findDateRange(allGroups);
+		log.info("Date filter limits the search to " + Math.max(0, range[1] - range[0] + 1) + " of " 
+			+ allGroups.size() + " image groups.");
+
+		int index = 0;
+		try {
+			for (List<List<File>> groups : directoryGroups) {
+				List<List<File>> selected = new ArrayList<List<File>>();
+				for (List<File> group : groups) {
+					if (index >= range[0] && index <= range[1]) {
+						selected.add(group);
+					}
+					index++;
+				}
+				count += addGroups(selected, executor, listener);
+			}
+		} finally {
+			probed.clear();
+		}
+		return count;
+	}
+
+	/**
+	 * Determines the range of image groups whose DateTime may be between {@code begin} and 
+	 * {@code end}. On DCF file systems, the DCF numbers grow with the capture time, so the bounds 
+	 * of the range are found by a binary search that reads the DateTime of only a few groups. The 
+	 * range is extended by {@link #DCF_MARGIN} groups in both directions, since the DateTime of 
+	 * consecutive groups is not strictly ordered, e.g., when the camera clock was adjusted.
+	 * <p>
+	 * The search is only trusted if the DateTime of all read groups grows with their DCF numbers, 
+	 * and the groups right outside of the extended range are outside of the date filter. Otherwise, 
+	 * e.g., because the DCF numbers started over or the card contains the photos of two cameras, 
+	 * all groups are returned, such that no group in the date filter is missed.
+	 * 
+	 * @param groups file groups ordered by their DCF number
+	 * @return indices of the first and last group in the range
+	 */
+	private int[] findDateRange(List<List<File>> groups) {
+		int size = groups.size();
+		int[] all = { 0, size - 1 };
+		if (size == 0) return all;
+		Map<Integer, Date> dates = new TreeMap<Integer, Date>();
+		probe(groups, 0, dates);
+		probe(groups, size - 1, dates);
+		int first = (begin == null) ? 0 : search(groups, begin, false, dates);
+		int last = (end == null) ? size - 1 : search(groups, end, true, dates) - 1;
+		int low = Math.max(0, first - DCF_MARGIN);
+		int high = Math.min(size - 1, last + DCF_MARGIN);
+		if (low > 0 && !probe(groups, low - 1, dates).before(begin) 
+				|| high < size - 1 && !probe(groups, high + 1, dates).after(end)) {
+			log.info("Image groups outside of the date range are within the date filter; searching all groups.");
+			return all;
+		}
+		Date previous = null;
+		for (Date dateTime : dates.values()) {
+			if (previous != null && dateTime.before(previous)) {
+				log.info("DateTime does not grow with the DCF numbers; searching all groups.");
+				return all;
+			}
+			previous = dateTime;
+		}
+		return new int[] { low, high };
+	}
+
+	/**
+	 * Returns the index of the first group whose DateTime is after the given date or, if 
+	 * {@code after} is false, not before the given date.
+	 */
+	private int search(List<List<File>> groups, Date date, boolean after, Map<Integer, Date> dates) {
+		int low = 0, high = groups.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			Date dateTime = probe(groups, mid, dates);
+			if (after ? dateTime.after(date) : !dateTime.before(date)) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Reads the DateTime of the group with the given index, unless it was already read.
+	 * @param dates DateTimes of the groups that were already read, by their index
+	 */
+	private Date probe(List<List<File>> groups, int index, Map<Integer, Date> dates) {
+		Date dateTime = dates.get(index);
+		if (dateTime == null) {
+			List<File> files = groups.get(index);
+			ImportGroup group = new ImportGroup(files, searchMode == SourceConfig.SearchMode.dcf);
+			probed.put(files, group);
+			dateTime = group.getDateTime();
+			dates.put(index, dateTime);
+		}
+		return dateTime;
+	}
+
+	private int addFiles(List<File> files, ExecutorService executor, Listener listener) throws InterruptedException {
+		return addGroups(groupByBaseName(files), executor, listener);
+	}
+
+	private static int getDcfFileNumber(List<File> group) {
+		return Integer.parseInt(group.get(0).getName().substring(4, 8));
+	}
+
+	/**
+	 * Groups the files by their base name. The groups have the order of their first files.
+	 */
+	private static List<List<File>> groupByBaseName(List<File> files) {
+		Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+		for (File file : files) {
 			String baseName = FileUtils.getBaseName(file);
 			if (!groups.containsKey(baseName)) {
 				groups.put(baseName, new ArrayList<File>());
 			}
 			groups.get(baseName).add(file);
 		}
+		return new ArrayList<List<File>>(groups.values());
+	}
 
-		// check the date for each file group and add them to the list
-		for (List<File> imageGroup : groups.values()) {
-			ImportGroup group = new ImportGroup(imageGroup, searchMode == SourceConfig.SearchMode.dcf);
-			Date dateTime = group.getDateTime();
-			if (begin == null || dateTime.compareTo(begin) >= 0) {
-				if (end == null || dateTime.compareTo(end) <= 0) {
-					importGroups.add(group);
-				}
-			}
+	private int addGroups(List<List<File>> groups, ExecutorService executor, Listener listener) throws InterruptedException {
+		List<List<File>> fileGroups = new ArrayList<List<File>>(groups.size());
+		for (List<File> group : groups) {
+			if (isImported(group)) continue;
+			if (begin != null && isModifiedBefore(group, begin.getTime() - MTIME_MARGIN)) continue;
+			fileGroups.add(group);
+		}
+
+		List<ImportGroup> importGroups = createGroups(fileGroups, executor);
+		if (begin != null || end != null) {
+			importGroups = filterByDate(importGroups);
 		}
+		if (importGroups.isEmpty()) return 0;
+		if (dateNeeded) {
+			Collections.sort(importGroups);
+		} else {
+			Collections.sort(importGroups, ImportGroup.PATH_ORDER);
+		}
+		Metrics.found(importGroups);
+		listener.found(importGroups);
+		return importGroups.size();
+	}
+
+	/**
+	 * The entries of a directory that satisfy the filters, ordered by their names.
+	 */
+	private static class Listing {
+		final List<File> files = new ArrayList<File>();
+		final List<Path> directories = new ArrayList<Path>();
 	}
 
-	private class ImportFileFilter implements FileFilter {
-		private final Pattern dcfFilePattern = Pattern.compile("[0-9A-Z_]{4}[0-9]{4}\\.[0-9A-Z_]+");
+	/**
+	 * Lists the files and subdirectories of a directory that satisfy the filters. Entries are 
+	 * first checked by their name; the type, size and modification time of the remaining entries 
+	 * are then read with a single attribute request per entry, and kept in the returned 
+	 * {@link SourceFile}s for later use.
+	 */
+	private Listing list(Path directory, boolean withFiles, boolean withDirectories) {
+		long start = System.nanoTime();
+		Listing listing = new Listing();
+		int dcfDirNumber = -1;
+		if (withFiles && searchMode == SourceConfig.SearchMode.dcf) {
+			// the DCF directory number is the same for all files of the directory
+			dcfDirNumber = Integer.parseInt(directory.getFileName().toString().substring(0, 3));
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path entry : stream) {
+				String name = entry.getFileName().toString();
+				boolean file = withFiles && acceptFile(name, dcfDirNumber);
+				boolean dir = withDirectories && acceptDirectory(name);
+				if (!file && !dir) continue;
 
-		public boolean accept(File file) {
-			if (file.isFile()) {
-				if (extensions != null) {
-					String ext = FileUtils.getExtension(file).toLowerCase();
-					if (!extensions.contains(ext)) return false;
-				} 
-				if (searchMode == SourceConfig.SearchMode.dcf) {
-					if (!dcfFilePattern.matcher(file.getName()).matches()) return false;
-					if (min != null || max != null) {
-						int dcfDirNumber = Integer.parseInt(file.getParentFile().getName().substring(0, 3));
-						int dcfFileNumber = Integer.parseInt(file.getName().substring(4, 8));
-						int dcfNumber = dcfDirNumber * 10000 + dcfFileNumber;
-						if (min != null && dcfNumber < min) return false;
-						if (max != null && dcfNumber > max) return false;
-					}
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+				} catch (IOException e) {
+					log.warning("Could not read attributes of " + entry);
+					continue;
+				}
+				if (file && attributes.isRegularFile()) {
+					listing.files.add(new SourceFile(entry, attributes));
+				} else if (dir && attributes.isDirectory()) {
+					listing.directories.add(entry);
 				}
-				return true;
 			}
-			return false;
+		} catch (IOException | DirectoryIteratorException e) {
+			log.warning("Could not list directory " + directory);
 		}
+		Collections.sort(listing.files);
+		Collections.sort(listing.directories);
+		Metrics.record(Metrics.SCAN, start);
+		return listing;
 	}
 
-	private class ImportDirectoryFilter implements FileFilter {
-		private final Pattern dcfDirPattern = Pattern.compile("[0-9]{3}[0-9A-Z_]{5}");
+	/**
+	 * Checks whether all files were last modified before the given time. Since a file cannot be 
+	 * written before the photo was taken, the DateTime of such a group is before that time as well.
+	 */
+	private static boolean isModifiedBefore(List<File> files, long time) {
+		for (File file : files) {
+			if (file.lastModified() >= time) return false;
+		}
+		return true;
+	}
 
-		public boolean accept(File file) {
-			if (file.isDirectory()) {
-				if (searchMode == SourceConfig.SearchMode.dcf) {
-					if (!dcfDirPattern.matcher(file.getName()).matches()) return false;
-					if (min != null || max != null) {
-						int dcfDirNumber = Integer.parseInt(file.getName().substring(0, 3));
-						if (min != null && dcfDirNumber < min.intValue() / 10000) return false;
-						if (max != null && dcfDirNumber > max.intValue() / 10000) return false;
-					}
-				}
-				return true;
+	private boolean isImported(List<File> files) {
+		if (ledgers == null || ledgers.isEmpty()) return false;
+		for (ImportLedger ledger : ledgers) {
+			if (!ledger.containsAll(files)) return false;
+		}
+		return true;
+	}
+
+	private boolean acceptFile(String name, int dcfDirNumber) {
+		if (extensions != null) {
+			int position = name.lastIndexOf(".");
+			String ext = (position <= 0) ? "" : name.substring(position + 1).toLowerCase();
+			if (!extensions.contains(ext)) return false;
+		}
+		if (searchMode == SourceConfig.SearchMode.dcf) {
+			if (!dcfFilePattern.matcher(name).matches()) return false;
+			if (min != null || max != null) {
+				int dcfFileNumber = Integer.parseInt(name.substring(4, 8));
+				int dcfNumber = dcfDirNumber * 10000 + dcfFileNumber;
+				if (min != null && dcfNumber < min) return false;
+				if (max != null && dcfNumber > max) return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean acceptDirectory(String name) {
+		if (searchMode == SourceConfig.SearchMode.dcf) {
+			if (!dcfDirPattern.matcher(name).matches()) return false;
+			if (min != null || max != null) {
+				int dcfDirNumber = Integer.parseInt(name.substring(0, 3));
+				if (min != null && dcfDirNumber < min.intValue() / 10000) return false;
+				if (max != null && dcfDirNumber > max.intValue() / 10000) return false;
 			}
-			return false;
 		}
+		return true;
 	}
 }
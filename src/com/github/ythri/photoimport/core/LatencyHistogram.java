@@ -0,0 +1,78 @@
+package com.github.ythri.photoimport.core;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies that can be updated concurrently without locking. The latencies are
+ * counted in buckets of powers of two microseconds, so percentiles are accurate up to a factor of
+ * two, which is sufficient to compare runs with different card readers or versions.
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a single latency.
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos));
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of all recorded latencies.
+	 * @return total latency in nanoseconds
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile of the recorded latencies.
+	 * @param percentile percentile between 0 and 100
+	 * @return upper bound of the percentile in microseconds, or 0 if no latency was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long rank = (long) Math.ceil(count.get() * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return (i == 0) ? 0 : Math.min(1L << i, max.get() / 1000);
+			}
+		}
+		return max.get() / 1000;
+	}
+
+	/**
+	 * Returns a summary of the histogram for the run report.
+	 * @return map of the count, the total in milliseconds, and the percentiles in microseconds
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("count", getCount());
+		map.put("totalMillis", getTotal() / 1000000);
+		map.put("p50Micros", getPercentile(50));
+		map.put("p90Micros", getPercentile(90));
+		map.put("p99Micros", getPercentile(99));
+		map.put("maxMicros", max.get() / 1000);
+		return map;
+	}
+}
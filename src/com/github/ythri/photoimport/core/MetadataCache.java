@@ -0,0 +1,183 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * This class implements a persistent cache for the metadata of image files. It maps the absolute
+ * path of a file, together with its size and modification time, to the DateTime that was extracted
+ * from its EXIF data. An entry is only used if the size and modification time of the file still
+ * match, such that changed files are read again.
+ * <p>
+ * The cache is stored in a compact binary file. Each time the cache is loaded, a new run is
+ * started; entries that were not used in the last {@code maxAge} runs are dropped when the cache
+ * is saved again. The cache can be used concurrently by multiple threads.
+ */
+public class MetadataCache {
+	private static final Logger log = Logger.getLogger(MetadataCache.class.getName());
+
+	private static final int MAGIC = 0x50494D43;
+	private static final int VERSION = 1;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private final File file;
+	private final int maxAge;
+	private int run = 0;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private static class Entry {
+		final long size;
+		final long modified;
+		final long dateTime;
+		volatile int lastSeen;
+
+		Entry(long size, long modified, long dateTime, int lastSeen) {
+			this.size = size;
+			this.modified = modified;
+			this.dateTime = dateTime;
+			this.lastSeen = lastSeen;
+		}
+	}
+
+	/**
+	 * Creates a cache that is stored in the given file. The cache is initially empty; use
+	 * {@link #load()} to read the entries of previous runs.
+	 * @param file file the cache is stored in
+	 * @param maxAge number of runs after which unused entries are evicted
+	 */
+	public MetadataCache(File file, int maxAge) {
+		this.file = file;
+		this.maxAge = Math.max(1, maxAge);
+	}
+
+	/**
+	 * Loads the cache entries from the cache file and starts a new run. If the file does not exist
+	 * or cannot be read, the cache stays empty.
+	 */
+	public void load() {
+		entries.clear();
+		run = 0;
+		if (!file.exists()) return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warning("Ignoring metadata cache " + file + " with unknown format.");
+				return;
+			}
+			run = in.readInt() + 1;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				entries.put(path, new Entry(in.readLong(), in.readLong(), in.readLong(), in.readInt()));
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to read metadata cache " + file, e);
+			entries.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Saves the cache to the cache file, dropping all entries that have not been used in the last
+	 * runs. The file is written to a temporary file first and then atomically replaces the old cache.
+	 */
+	public void save() {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			int count = 0;
+			for (Entry entry : entries.values()) {
+				if (run - entry.lastSeen < maxAge) count++;
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(run);
+			out.writeInt(count);
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				if (run - entry.lastSeen < maxAge) {
+					out.writeUTF(e.getKey());
+					out.writeLong(entry.size);
+					out.writeLong(entry.modified);
+					out.writeLong(entry.dateTime);
+					out.writeInt(entry.lastSeen);
+				}
+			}
+			out.close();
+			out = null;
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to write metadata cache " + file, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the cache contains a valid entry for the given file, i.e., an entry with the
+	 * same size and modification time. A valid entry is marked as used in the current run.
+	 * @param source file to look up
+	 * @return true, if {@link #get(File)} can be used to get the DateTime of the file
+	 */
+	public boolean contains(File source) {
+		Entry entry = entries.get(source.getAbsolutePath());
+		if (entry == null || entry.size != source.length() || entry.modified != source.lastModified()) {
+			return false;
+		}
+		entry.lastSeen = run;
+		return true;
+	}
+
+	/**
+	 * Returns the cached DateTime of the given file.
+	 * @param source file to look up
+	 * @return cached DateTime, or {@code null} if the file has no DateTime or is not cached
+	 */
+	public Date get(File source) {
+		Entry entry = entries.get(source.getAbsolutePath());
+		return (entry == null || entry.dateTime == NO_DATE) ? null : new Date(entry.dateTime);
+	}
+
+	/**
+	 * Stores the DateTime of the given file in the cache.
+	 * @param source file the DateTime was read from
+	 * @param dateTime DateTime of the file, or {@code null} if the file has no DateTime
+	 */
+	public void put(File source, Date dateTime) {
+		long value = (dateTime == null) ? NO_DATE : dateTime.getTime();
+		entries.put(source.getAbsolutePath(), new Entry(source.length(), source.lastModified(), value, run));
+	}
+
+	/**
+	 * Returns the number of entries in the cache.
+	 * @return number of cached files
+	 */
+	public int size() {
+		return entries.size();
+	}
+}
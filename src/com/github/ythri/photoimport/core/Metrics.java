@@ -0,0 +1,351 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.File;
+
+import java.util.List;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class collects the metrics of an import: the number of found and copied files and bytes,
+ * and the latencies of each phase, i.e., listing source directories ({@link #SCAN}), reading EXIF
+ * data ({@link #EXIF}), resolving destinations ({@link #RESOLVE}), copying ({@link #COPY}),
+ * verifying ({@link #VERIFY}) and syncing files to disk ({@link #SYNC}). The copy, verify and sync
+ * phases are additionally recorded per target, together with the rate achieved by each target
+ * while it was written. The time that workers waited for a {@link RateLimiter} is recorded per
+ * limited device.
+ * <p>
+ * The metrics are kept in static counters, like the counters of the {@link ExifDateReader}, such
+ * that all classes can record them without passing an instance around. All methods are
+ * thread-safe.
+ */
+public class Metrics {
+	public static final String SCAN = "scan";
+	public static final String EXIF = "exif";
+	public static final String RESOLVE = "resolve";
+	public static final String COPY = "copy";
+	public static final String VERIFY = "verify";
+	public static final String SYNC = "sync";
+
+	private static final String[] PHASES = { SCAN, EXIF, RESOLVE, COPY, VERIFY, SYNC };
+
+	private static final ConcurrentMap<String, LatencyHistogram> phases = new ConcurrentHashMap<String, LatencyHistogram>();
+	private static final ConcurrentMap<String, TargetMetrics> targets = new ConcurrentSkipListMap<String, TargetMetrics>();
+	private static final ConcurrentMap<String, AtomicLong> throttled = new ConcurrentSkipListMap<String, AtomicLong>();
+	private static final AtomicLong groupsFound = new AtomicLong();
+	private static final AtomicLong filesFound = new AtomicLong();
+	private static final AtomicLong bytesFound = new AtomicLong();
+	private static final AtomicLong filesCopied = new AtomicLong();
+	private static final AtomicLong bytesCopied = new AtomicLong();
+	private static final AtomicLong filesSynced = new AtomicLong();
+	private static final AtomicLong syncNanos = new AtomicLong();
+	private static volatile boolean scanComplete = false;
+	private static volatile long startTime = System.currentTimeMillis();
+
+	/**
+	 * The metrics of a single target.
+	 */
+	private static class TargetMetrics {
+		final AtomicLong files = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong duplicates = new AtomicLong();
+		final AtomicLong duplicateBytes = new AtomicLong();
+		final LatencyHistogram copy = new LatencyHistogram();
+		final LatencyHistogram verify = new LatencyHistogram();
+		final AtomicLong synced = new AtomicLong();
+		final LatencyHistogram sync = new LatencyHistogram();
+		long firstWrite = Long.MAX_VALUE;
+		long lastWrite = Long.MIN_VALUE;
+
+		/**
+		 * Returns the rate at which the target was written, from the start of its first copy to
+		 * the end of its last copy.
+		 */
+		synchronized long getBytesPerSecond() {
+			if (lastWrite <= firstWrite) return 0;
+			return (long) (bytes.get() * 1e9 / (lastWrite - firstWrite));
+		}
+	}
+
+	/**
+	 * Resets all metrics, e.g., before an import is started.
+	 */
+	public static void reset() {
+		phases.clear();
+		targets.clear();
+		throttled.clear();
+		groupsFound.set(0);
+		filesFound.set(0);
+		bytesFound.set(0);
+		filesCopied.set(0);
+		bytesCopied.set(0);
+		filesSynced.set(0);
+		syncNanos.set(0);
+		scanComplete = false;
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records the latency of an operation of the given phase.
+	 * @param phase name of the phase
+	 * @param start start time of the operation, as returned by {@link System#nanoTime()}
+	 */
+	public static void record(String phase, long start) {
+		getPhase(phase).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records image groups that were found in the source and will be copied.
+	 * @param groups found image groups
+	 */
+	public static void found(List<ImportGroup> groups) {
+		groupsFound.addAndGet(groups.size());
+		for (ImportGroup group : groups) {
+			for (File file : group.getFiles()) {
+				filesFound.incrementAndGet();
+				bytesFound.addAndGet(file.length());
+			}
+		}
+	}
+
+	/**
+	 * Marks the search of the source as complete, such that the number of found files is final.
+	 */
+	public static void scanComplete() {
+		scanComplete = true;
+	}
+
+	/**
+	 * Records a source file that was copied to one or more targets.
+	 * @param source source file
+	 * @param start start time of the copy, as returned by {@link System#nanoTime()}
+	 */
+	public static void copied(File source, long start) {
+		record(COPY, start);
+		filesCopied.incrementAndGet();
+		bytesCopied.addAndGet(source.length());
+	}
+
+	/**
+	 * Records a file that was written to a target.
+	 * @param target name of the target
+	 * @param bytes size of the file
+	 * @param start start time of the copy, as returned by {@link System#nanoTime()}
+	 * @param failed whether the file could not be written
+	 */
+	public static void written(String target, long bytes, long start, boolean failed) {
+		TargetMetrics metrics = getTarget(target);
+		if (failed) {
+			metrics.failures.incrementAndGet();
+			return;
+		}
+		long end = System.nanoTime();
+		metrics.copy.record(end - start);
+		metrics.files.incrementAndGet();
+		metrics.bytes.addAndGet(bytes);
+		synchronized (metrics) {
+			metrics.firstWrite = Math.min(metrics.firstWrite, start);
+			metrics.lastWrite = Math.max(metrics.lastWrite, end);
+		}
+	}
+
+	/**
+	 * Records the verification of a file in a target.
+	 * @param target name of the target
+	 * @param start start time of the verification, as returned by {@link System#nanoTime()}
+	 */
+	public static void verified(String target, long start) {
+		long nanos = System.nanoTime() - start;
+		getPhase(VERIFY).record(nanos);
+		getTarget(target).verify.record(nanos);
+	}
+
+	/**
+	 * Records a source file that was not copied to a target, because its content already exists 
+	 * in the target.
+	 * @param target name of the target
+	 * @param bytes size of the file
+	 */
+	public static void deduplicated(String target, long bytes) {
+		TargetMetrics metrics = getTarget(target);
+		metrics.duplicates.incrementAndGet();
+		metrics.duplicateBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records a sync of files in a target, i.e., forcing their data and the entries of their
+	 * directories to disk, either for a single file or for a batch of files.
+	 * @param target name of the target
+	 * @param files number of synced files
+	 * @param start start time of the sync, as returned by {@link System#nanoTime()}
+	 */
+	public static void synced(String target, int files, long start) {
+		long nanos = System.nanoTime() - start;
+		getPhase(SYNC).record(nanos);
+		TargetMetrics metrics = getTarget(target);
+		metrics.sync.record(nanos);
+		metrics.synced.addAndGet(files);
+		filesSynced.addAndGet(files);
+		syncNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records the time that a worker waited for the bandwidth of a device.
+	 * @param device name of the {@link RateLimiter}
+	 * @param nanos waiting time in nanoseconds
+	 */
+	public static void throttled(String device, long nanos) {
+		AtomicLong time = throttled.get(device);
+		if (time == null) {
+			throttled.putIfAbsent(device, new AtomicLong());
+			time = throttled.get(device);
+		}
+		time.addAndGet(nanos);
+	}
+
+	/**
+	 * Returns the rate at which each target was written, from the start of its first copy to the
+	 * end of its last copy.
+	 * @return map from the names of the targets to their rates in bytes per second
+	 */
+	public static Map<String, Long> getTargetRates() {
+		Map<String, Long> rates = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, TargetMetrics> entry : targets.entrySet()) {
+			rates.put(entry.getKey(), entry.getValue().getBytesPerSecond());
+		}
+		return rates;
+	}
+
+	/**
+	 * Returns the time that workers waited for the bandwidth of each limited device.
+	 * @return map from the names of the rate limiters to the waiting time in nanoseconds
+	 */
+	public static Map<String, Long> getThrottledTimes() {
+		Map<String, Long> times = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : throttled.entrySet()) {
+			times.put(entry.getKey(), entry.getValue().get());
+		}
+		return times;
+	}
+
+	public static long getFilesFound() {
+		return filesFound.get();
+	}
+
+	public static long getBytesFound() {
+		return bytesFound.get();
+	}
+
+	public static long getFilesCopied() {
+		return filesCopied.get();
+	}
+
+	public static long getBytesCopied() {
+		return bytesCopied.get();
+	}
+
+	public static long getFilesSynced() {
+		return filesSynced.get();
+	}
+
+	/**
+	 * Returns the total time spent syncing files to disk, summed over all targets and workers.
+	 * @return sync time in nanoseconds
+	 */
+	public static long getSyncTime() {
+		return syncNanos.get();
+	}
+
+	public static boolean isScanComplete() {
+		return scanComplete;
+	}
+
+	/**
+	 * Returns the time since the metrics were reset.
+	 * @return elapsed time in milliseconds
+	 */
+	public static long getElapsed() {
+		return System.currentTimeMillis() - startTime;
+	}
+
+	/**
+	 * Returns all metrics as a tree of maps, lists and values, which can be written as JSON.
+	 * @return report of the current metrics
+	 */
+	public static Map<String, Object> getReport() {
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("startTime", startTime);
+		report.put("durationMillis", getElapsed());
+
+		Map<String, Object> source = new LinkedHashMap<String, Object>();
+		source.put("groups", groupsFound.get());
+		source.put("files", filesFound.get());
+		source.put("bytes", bytesFound.get());
+		source.put("exifBytesRead", ExifDateReader.getBytesRead());
+		source.put("exifBytesTotal", ExifDateReader.getBytesTotal());
+		report.put("source", source);
+
+		Map<String, Object> copied = new LinkedHashMap<String, Object>();
+		copied.put("files", filesCopied.get());
+		copied.put("bytes", bytesCopied.get());
+		copied.put("bytesPerSecond", bytesCopied.get() * 1000 / Math.max(1, getElapsed()));
+		report.put("copied", copied);
+
+		Map<String, Object> phaseReport = new LinkedHashMap<String, Object>();
+		for (String phase : PHASES) {
+			LatencyHistogram histogram = phases.get(phase);
+			if (histogram != null) {
+				phaseReport.put(phase, histogram.toMap());
+			}
+		}
+		report.put("phases", phaseReport);
+
+		Map<String, Object> targetReport = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, TargetMetrics> entry : targets.entrySet()) {
+			TargetMetrics metrics = entry.getValue();
+			Map<String, Object> target = new LinkedHashMap<String, Object>();
+			target.put("files", metrics.files.get());
+			target.put("bytes", metrics.bytes.get());
+			target.put("bytesPerSecond", metrics.getBytesPerSecond());
+			target.put("failures", metrics.failures.get());
+			target.put("duplicates", metrics.duplicates.get());
+			target.put("duplicateBytes", metrics.duplicateBytes.get());
+			target.put("copy", metrics.copy.toMap());
+			target.put("verify", metrics.verify.toMap());
+			target.put("synced", metrics.synced.get());
+			target.put("sync", metrics.sync.toMap());
+			targetReport.put(entry.getKey(), target);
+		}
+		report.put("targets", targetReport);
+
+		Map<String, Object> throttleReport = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Long> entry : getThrottledTimes().entrySet()) {
+			throttleReport.put(entry.getKey(), entry.getValue() / 1000000);
+		}
+		report.put("throttledMillis", throttleReport);
+		return report;
+	}
+
+	private static LatencyHistogram getPhase(String phase) {
+		LatencyHistogram histogram = phases.get(phase);
+		if (histogram == null) {
+			phases.putIfAbsent(phase, new LatencyHistogram());
+			histogram = phases.get(phase);
+		}
+		return histogram;
+	}
+
+	private static TargetMetrics getTarget(String target) {
+		TargetMetrics metrics = targets.get(target);
+		if (metrics == null) {
+			targets.putIfAbsent(target, new TargetMetrics());
+			metrics = targets.get(target);
+		}
+		return metrics;
+	}
+}
@@ -3,6 +3,9 @@ package com.github.ythri.photoimport.core;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
 
 /**
  * This class is responsible for formatting path and file names from the configuration files by 
@@ -16,29 +19,106 @@ import java.util.Map;
  * variables can change values for each file, the path formatter will take the custom variables 
  * in the constructor and the file specific variables, as well as the path, in the actual 
  * {@link #format(String,ImportGroup)} method.
+ * <p>
+ * Each pattern is parsed only once into a {@link Template}: the custom variables are substituted 
+ * right away, such that only the file specific variables remain as slots that are filled for each 
+ * image group. Values are inserted literally, so they may contain characters like {@code $} or 
+ * {@code \}.
  */
 public class PathFormatter {
 	private Map<String, String> variables;
 	private Pattern replacer;
+	private Map<String, Template> templates = new HashMap<String, Template>();
+
+	/**
+	 * A pattern that was parsed by the path formatter. The template consists of a list of 
+	 * segments, which are either literal text or the name of a file specific variable. A template 
+	 * reuses its internal buffer for each call of {@link #format(ImportGroup)} and is therefore not 
+	 * thread-safe.
+	 */
+	public static class Template {
+		private final String[] literals;
+		private final String[] slots;
+		private final String[] placeholders;
+		private final StringBuilder builder = new StringBuilder();
+
+		/**
+		 * Creates a template from its segments. Literal {@code i} is followed by slot {@code i}; 
+		 * the last literal is not followed by any slot.
+		 */
+		private Template(List<String> literals, List<String> slots, List<String> placeholders) {
+			this.literals = literals.toArray(new String[literals.size()]);
+			this.slots = slots.toArray(new String[slots.size()]);
+			this.placeholders = placeholders.toArray(new String[placeholders.size()]);
+		}
+
+		/**
+		 * Formats the template for the given image group. Variables that are unknown to the group 
+		 * are kept in their original form.
+		 * @param group image group to take the values of the file specific variables from
+		 * @return formatted path
+		 */
+		public String format(ImportGroup group) {
+			builder.setLength(0);
+			for (int i = 0; i < slots.length; i++) {
+				builder.append(literals[i]);
+				String value = group.getProperty(slots[i]);
+				builder.append((value == null) ? placeholders[i] : value);
+			}
+			builder.append(literals[slots.length]);
+			return builder.toString();
+		}
+
+		/**
+		 * Returns the names of all file specific variables used by the template.
+		 * @return lower case variable names, in the order of their occurrence
+		 */
+		public String[] getVariables() {
+			return slots.clone();
+		}
+	}
 
 	public PathFormatter(Map<String, String> variables) {
 		this.variables = variables;
 		replacer = Pattern.compile("\\{(\\w+)\\}");
 	}
 
-	public String format(String pattern, ImportGroup group) {
+	/**
+	 * Parses the pattern into a template, substituting all custom variables.
+	 * @param pattern pattern from the configuration
+	 * @return compiled template
+	 */
+	public Template compile(String pattern) {
+		List<String> literals = new ArrayList<String>();
+		List<String> slots = new ArrayList<String>();
+		List<String> placeholders = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
 		Matcher m = replacer.matcher(pattern);
-		StringBuffer sb = new StringBuffer();
+		int end = 0;
 		while (m.find()) {
+			literal.append(pattern, end, m.start());
 			String var = m.group(1).toLowerCase();
-			// m.appendReplacement(sb, variables.containsKey(var) ? variables.get(var) : group.getProperty(var));
 			if (variables.containsKey(var)) {
-				m.appendReplacement(sb, variables.get(var));
+				literal.append(variables.get(var));
 			} else {
-				m.appendReplacement(sb, group.getProperty(var));
+				literals.add(literal.toString());
+				slots.add(var.intern());
+				placeholders.add(m.group());
+				literal.setLength(0);
 			}
+			end = m.end();
+		}
+		literal.append(pattern, end, pattern.length());
+		literals.add(literal.toString());
+		return new Template(literals, slots, placeholders);
+	}
+
+	public String format(String pattern, ImportGroup group) {
+		Template template = templates.get(pattern);
+		if (template == null) {
+			template = compile(pattern);
+			templates.put(pattern, template);
 		}
-		m.appendTail(sb);
-		return sb.toString();
+		return template.format(group);
 	}
-}
+}
\ No newline at end of file
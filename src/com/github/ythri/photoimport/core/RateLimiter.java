@@ -0,0 +1,67 @@
+package com.github.ythri.photoimport.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class limits the bandwidth of a device, e.g., the source card or the disk of a target, with
+ * a token bucket. Each worker acquires the bytes it is about to read or write, and waits until the
+ * bucket holds enough tokens for them. The bucket is refilled at the configured rate and holds at
+ * most the tokens of one second, so a device that was idle may burst for up to one second.
+ * <p>
+ * The tokens are reserved in the order in which the workers ask for them, so the bandwidth is
+ * shared fairly between the workers that use the same device: no worker waits longer than the
+ * reservations made before its own. Time spent waiting is recorded as {@link Metrics#throttled}.
+ * All methods are thread-safe.
+ */
+public class RateLimiter {
+	private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final String name;
+	private final long bytesPerSecond;
+
+	/**
+	 * Time at which all reserved bytes are transferred at the configured rate. The bucket is empty
+	 * if this time is one second ahead of the current time.
+	 */
+	private long next = System.nanoTime();
+
+	/**
+	 * Creates a limiter for the given device.
+	 * @param name name of the device in the metrics, e.g., the root directory of a target
+	 * @param bytesPerSecond maximum bandwidth in bytes per second
+	 */
+	public RateLimiter(String name, long bytesPerSecond) {
+		this.name = name;
+		this.bytesPerSecond = Math.max(1, bytesPerSecond);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Waits until the given number of bytes may be read or written. If the thread is interrupted
+	 * while waiting, the method returns early and the interrupted status is set again.
+	 * @param bytes number of bytes
+	 */
+	public void acquire(long bytes) {
+		if (bytes <= 0) return;
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			next = Math.max(next, now) + (long) (bytes * 1e9 / bytesPerSecond);
+			wait = next - now - BURST_NANOS;
+		}
+		if (wait <= 0) return;
+		Metrics.throttled(name, wait);
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file in the source directory, whose size and modification time were read together with its
+ * type while the directory was listed. Since both values are needed several times for each file,
+ * e.g., by the import ledgers and the metadata cache, they are returned from memory instead of
+ * being requested from the file system again, which is expensive on network mounts.
+ */
+class SourceFile extends File {
+	private static final long serialVersionUID = 1L;
+
+	private final long size;
+	private final long modified;
+
+	SourceFile(Path path, BasicFileAttributes attributes) {
+		super(path.toString());
+		this.size = attributes.size();
+		this.modified = attributes.lastModifiedTime().toMillis();
+	}
+
+	SourceFile(String path, long size, long modified) {
+		super(path);
+		this.size = size;
+		this.modified = modified;
+	}
+
+	@Override
+	public long length() {
+		return size;
+	}
+
+	@Override
+	public long lastModified() {
+		return modified;
+	}
+}
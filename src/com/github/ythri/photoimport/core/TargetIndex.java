@@ -0,0 +1,119 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.File;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps an in-memory index of the directory listings of a target during one run. Each
+ * directory is listed at most once, when it is first accessed; afterwards, all checks whether a
+ * file or directory exists are answered from memory. Files that are about to be written and
+ * directories that are created are added to the index, so the index also serves as the
+ * reservation of destination names for copies that have not been completed yet.
+ * <p>
+ * This avoids a metadata round trip for every file of a group and every suffix candidate, which is
+ * expensive on network targets with many files per directory. The index is not thread-safe and
+ * should only be used by the thread that resolves the destinations.
+ * <p>
+ * Names within a directory are compared case-insensitively, since many targets do not distinguish
+ * names that only differ in case, e.g., FAT and exFAT cards, SMB shares and macOS volumes. On a
+ * case-sensitive target, this only leads to a suffix where none would be needed. Directories are
+ * identified by their exact path, though: on a case-sensitive target, a directory whose path only
+ * differs in case from an existing one is a different directory, which still has to be created.
+ */
+public class TargetIndex {
+	private static final Logger log = Logger.getLogger(TargetIndex.class.getName());
+
+	/**
+	 * Case-folded names in the listings of all accessed directories, by the path of the directory;
+	 * a value of {@code null} marks a directory that does not exist.
+	 */
+	private Map<String, Set<String>> listings = new HashMap<String, Set<String>>();
+	private boolean dryRun = false;
+
+	/**
+	 * Enables the dry-run mode, in which directories are only added to the index but not created,
+	 * e.g., while an import is planned.
+	 * @param dryRun whether directories should only be added to the index
+	 */
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * Checks whether the given file exists or was added to the index.
+	 * @param file file to check
+	 * @return true, if the file exists
+	 */
+	public boolean exists(File file) {
+		Set<String> listing = getListing(file.getParentFile());
+		return listing != null && listing.contains(fold(file.getName()));
+	}
+
+	/**
+	 * Adds the given file to the index, e.g., because it is about to be written.
+	 * @param file file to add
+	 */
+	public void add(File file) {
+		Set<String> listing = getListing(file.getParentFile());
+		if (listing == null) {
+			listing = new HashSet<String>();
+			listings.put(file.getParent(), listing);
+		}
+		listing.add(fold(file.getName()));
+	}
+
+	/**
+	 * Creates the given directory and all its parent directories, unless they already exist.
+	 * @param directory directory to create
+	 */
+	public void mkdirs(File directory) {
+		if (getListing(directory) != null) return;
+		if (dryRun) {
+			log.info("Would create directory " + directory.toString());
+		} else {
+			log.info("Creating directory " + directory.toString());
+		}
+		if (!dryRun && !directory.mkdirs() && !directory.isDirectory()) {
+			log.warning("Could not create directory " + directory.toString());
+			return;
+		}
+		listings.put(directory.getPath(), new HashSet<String>());
+
+		// update the listings of the parent directories, some of which may have been created as well
+		for (File dir = directory; dir.getParentFile() != null; dir = dir.getParentFile()) {
+			String parent = dir.getParent();
+			if (listings.get(parent) != null) {
+				listings.get(parent).add(fold(dir.getName()));
+				break;
+			}
+			listings.remove(parent);
+		}
+	}
+
+	private Set<String> getListing(File directory) {
+		String key = directory.getPath();
+		if (listings.containsKey(key)) {
+			return listings.get(key);
+		}
+		String[] names = directory.list();
+		Set<String> listing = null;
+		if (names != null) {
+			listing = new HashSet<String>(names.length * 2);
+			for (String name : names) {
+				listing.add(fold(name));
+			}
+		}
+		listings.put(key, listing);
+		return listing;
+	}
+
+	private static String fold(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,95 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.File;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Date;
+
+/**
+ * This class describes the copy of a single source file to its destinations in one or more
+ * targets. Besides the source and destinations, it keeps the DCF number and DateTime of the image
+ * group the file belongs to, such that a transfer can be executed and recorded without the group,
+ * e.g., when resuming an interrupted import.
+ * <p>
+ * The destinations and links are only added while the transfer is prepared. Once its copies
+ * were submitted, a transfer is only read, such that the passes that write its destinations on
+ * different roots can share it without synchronization.
+ */
+public class Transfer {
+	private final File source;
+	private final int dcfNumber;
+	private final Date dateTime;
+	private final Map<String, File> destinations = new LinkedHashMap<String, File>();
+	private final Map<String, File> links = new LinkedHashMap<String, File>();
+
+	/**
+	 * Creates a transfer without any destinations.
+	 * @param source source file
+	 * @param dcfNumber DCF number of the group of the source file, or -1 if it has none
+	 * @param dateTime DateTime of the group of the source file, or {@code null} if it was not read
+	 */
+	public Transfer(File source, int dcfNumber, Date dateTime) {
+		this.source = source;
+		this.dcfNumber = dcfNumber;
+		this.dateTime = dateTime;
+	}
+
+	/**
+	 * Creates a transfer of a file of the given image group. The DateTime of the group is only
+	 * included if it was already read, so creating a transfer never reads EXIF data.
+	 * @param source source file
+	 * @param group image group of the source file
+	 */
+	public Transfer(File source, ImportGroup group) {
+		this(source, group.getDcfNumber(), group.getDateTimeIfRead());
+	}
+
+	public File getSource() {
+		return source;
+	}
+
+	public int getDcfNumber() {
+		return dcfNumber;
+	}
+
+	public Date getDateTime() {
+		return dateTime;
+	}
+
+	/**
+	 * Adds a destination of the source file.
+	 * @param target name of the target
+	 * @param destination destination of the source file in the target
+	 */
+	public void addDestination(String target, File destination) {
+		destinations.put(target, destination);
+	}
+
+	/**
+	 * Returns the destinations of the source file.
+	 * @return map from target names to destinations, in the order of the targets
+	 */
+	public Map<String, File> getDestinations() {
+		return destinations;
+	}
+
+	/**
+	 * Sets an existing file with the same content as the source file, to which the destination 
+	 * in the given target is linked instead of copying the source file.
+	 * @param target name of the target
+	 * @param existing existing file in the target
+	 */
+	public void addLink(String target, File existing) {
+		links.put(target, existing);
+	}
+
+	/**
+	 * Returns the existing file the destination in the given target is linked to.
+	 * @param target name of the target
+	 * @return existing file in the target, or {@code null} if the source file is copied
+	 */
+	public File getLink(String target) {
+		return links.get(target);
+	}
+}
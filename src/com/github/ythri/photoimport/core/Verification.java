@@ -0,0 +1,56 @@
+package com.github.ythri.photoimport.core;
+
+import java.io.File;
+
+/**
+ * This class records the result of verifying a single copied file, i.e., of comparing the checksum
+ * of the source file with the checksum of its copy.
+ */
+public class Verification {
+	public enum Status { ok, mismatch, failed }
+
+	private final File source;
+	private final File destination;
+	private final long sourceChecksum;
+	private final long destinationChecksum;
+
+	public Verification(File source, File destination, long sourceChecksum, long destinationChecksum) {
+		this.source = source;
+		this.destination = destination;
+		this.sourceChecksum = sourceChecksum;
+		this.destinationChecksum = destinationChecksum;
+	}
+
+	public File getSource() {
+		return source;
+	}
+
+	public File getDestination() {
+		return destination;
+	}
+
+	public long getSourceChecksum() {
+		return sourceChecksum;
+	}
+
+	public long getDestinationChecksum() {
+		return destinationChecksum;
+	}
+
+	/**
+	 * Returns the status of the verification. The verification failed, if one of the checksums
+	 * could not be computed.
+	 * @return status of the verification
+	 */
+	public Status getStatus() {
+		if (sourceChecksum == -1L || destinationChecksum == -1L) {
+			return Status.failed;
+		}
+		return (sourceChecksum == destinationChecksum) ? Status.ok : Status.mismatch;
+	}
+
+	@Override
+	public String toString() {
+		return getStatus() + ": " + source + " -> " + destination;
+	}
+}
@@ -0,0 +1,47 @@
+package com.github.ythri.photoimport.core;
+
+import com.github.ythri.photoimport.config.TargetConfig;
+
+import java.io.File;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class selects the copied files of a target that are verified, according to the
+ * {@code verifypolicy} of the target:
+ * <ul>
+ * <li>{@code full} verifies all files.</li>
+ * <li>{@code nth} verifies every {@code verifyevery}-th file, starting with the first one.</li>
+ * <li>{@code random} verifies a random sample of {@code verifypercent} percent of the files.</li>
+ * <li>{@code size} verifies all files of at least {@code verifysize} bytes, e.g., to verify raw
+ * files and videos, but not their previews.</li>
+ * </ul>
+ * If the target does not verify its files at all, no file is selected. All methods are
+ * thread-safe.
+ */
+class VerificationPolicy {
+	private final TargetConfig target;
+	private final AtomicLong count = new AtomicLong();
+	private final Random random = new Random();
+
+	VerificationPolicy(TargetConfig target) {
+		this.target = target;
+	}
+
+	/**
+	 * Decides whether the copy of the given source file is verified.
+	 * @param source source file, which is about to be copied to the target
+	 * @return true, if the copy should be verified
+	 */
+	boolean select(File source) {
+		if (target.verify == null || !target.verify) return false;
+		if (target.verifypolicy == null) return true;
+		switch (target.verifypolicy) {
+			case nth: return count.getAndIncrement() % target.verifyevery == 0;
+			case random: return random.nextInt(100) < target.verifypercent;
+			case size: return source.length() >= target.verifysize;
+			default: return true;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CopyJournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), CopyJournal.FILE_NAME);
+	}
+
+	private static Transfer transfer(String source, int dcfNumber, Date dateTime, String... destinations) {
+		Transfer transfer = new Transfer(new File(source), dcfNumber, dateTime);
+		for (int i = 0; i < destinations.length; i += 2) {
+			transfer.addDestination(destinations[i], new File(destinations[i + 1]));
+		}
+		return transfer;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Transfer first = transfer("/card/IMG_0001.JPG", 1000001, new Date(1400000000000L),
+			"main", "/photos/IMG_1000001.JPG", "backup", "/backup/IMG_0001.JPG");
+		Transfer second = transfer("/card/tab\tand\\backslash\nline.JPG", -1, null,
+			"main", "/photos/with\ttab/and\\backslash\nline.JPG");
+		Transfer third = transfer("/card/IMG_0003.JPG", 1000003, new Date(1400000001000L),
+			"main", "/photos/IMG_1000003.JPG");
+
+		CopyJournal journal = new CopyJournal(file);
+		assertFalse(journal.exists());
+		journal.begin(Arrays.asList(first, second));
+		journal.begin(Arrays.asList(third));
+		journal.done("backup", new File("/backup/IMG_0001.JPG"));
+		journal.done("main", new File("/photos/IMG_1000003.JPG"));
+		journal.close();
+		assertTrue(journal.exists());
+
+		List<Transfer> pending = new CopyJournal(file).readPending();
+		assertEquals(2, pending.size());
+		assertTransfer(transfer("/card/IMG_0001.JPG", 1000001, new Date(1400000000000L),
+			"main", "/photos/IMG_1000001.JPG"), pending.get(0));
+		assertTransfer(second, pending.get(1));
+
+		journal.delete();
+		assertFalse(journal.exists());
+	}
+
+	@Test
+	public void testTruncatedLine() throws IOException {
+		CopyJournal journal = new CopyJournal(file);
+		journal.begin(Arrays.asList(transfer("/card/IMG_0001.JPG", 1000001, null, "main", "/photos/IMG_0001.JPG")));
+		journal.close();
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			// the start of a line of an interrupted import
+			out.write("D\tmain\t/photos/IMG_00".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		assertEquals(1, new CopyJournal(file).readPending().size());
+
+		// the journal is continued after the truncated line
+		CopyJournal resumed = new CopyJournal(file);
+		resumed.done("main", new File("/photos/IMG_0001.JPG"));
+		resumed.close();
+		assertEquals(0, new CopyJournal(file).readPending().size());
+	}
+
+	@Test
+	public void testEscape() {
+		for (String field : new String[] { "", "plain", "\t", "\\", "\\t", "a\tb\\c\nd\re", "\\\\\t\t" }) {
+			String escaped = CopyJournal.escape(field);
+			assertFalse(escaped.contains("\t") || escaped.contains("\n") || escaped.contains("\r"));
+			assertEquals(field, CopyJournal.unescape(escaped));
+		}
+	}
+
+	static void assertTransfer(Transfer expected, Transfer actual) {
+		assertEquals(expected.getSource(), actual.getSource());
+		assertEquals(expected.getDcfNumber(), actual.getDcfNumber());
+		assertEquals(expected.getDateTime(), actual.getDateTime());
+		assertEquals(expected.getDestinations(), actual.getDestinations());
+	}
+}
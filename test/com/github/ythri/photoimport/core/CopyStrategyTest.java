@@ -0,0 +1,120 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.github.ythri.photoimport.config.Suffix;
+import com.github.ythri.photoimport.config.TargetConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CopyStrategyTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final CopyStrategy[] STRATEGIES = { CopyStrategy.BUFFER, CopyStrategy.DOUBLE_BUFFER,
+		CopyStrategy.MAPPED, CopyStrategy.COPY, CopyStrategy.TRANSFER };
+
+	private byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	private File createSource(byte[] content) throws IOException {
+		File source = new File(folder.getRoot(), "card/IMG_0001.CR2");
+		source.getParentFile().mkdirs();
+		Files.write(source.toPath(), content);
+		return source;
+	}
+
+	private List<FanOutCopyTask.Destination> createDestinations(String... roots) {
+		List<FanOutCopyTask.Destination> destinations = new ArrayList<FanOutCopyTask.Destination>();
+		for (String root : roots) {
+			TargetConfig target = new TargetConfig();
+			target.root = new File(folder.getRoot(), root).getPath();
+			target.path = "";
+			target.file = "{filename}";
+			target.suffix = new Suffix();
+			CopyTask task = new CopyTask(root, target, new HashMap<String, String>());
+			File file = new File(target.root, "IMG_0001.CR2");
+			file.getParentFile().mkdirs();
+			destinations.add(new FanOutCopyTask.Destination(task, file, null));
+		}
+		return destinations;
+	}
+
+	private static long crc(byte[] content) {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return crc.getValue();
+	}
+
+	@Test
+	public void testStrategiesCopyToAllDestinations() throws IOException {
+		// larger than a buffer of the double buffer, but not a multiple of it
+		byte[] content = content(9 * 1024 * 1024 + 123);
+		File source = createSource(content);
+		for (CopyStrategy strategy : STRATEGIES) {
+			List<FanOutCopyTask.Destination> destinations = createDestinations(strategy + "-main", strategy + "-backup");
+			long checksum = strategy.copy(source, null, destinations, true);
+			assertEquals(strategy.toString(), crc(content), checksum);
+			for (FanOutCopyTask.Destination to : destinations) {
+				assertFalse(strategy.toString(), to.failed);
+				assertArrayEquals(strategy.toString(), content, Files.readAllBytes(to.temp.toPath()));
+			}
+		}
+	}
+
+	@Test
+	public void testFailedDestinationDoesNotStopTheOthers() throws IOException {
+		byte[] content = content(100 * 1024);
+		File source = createSource(content);
+		List<FanOutCopyTask.Destination> destinations = createDestinations("main", "backup");
+		// the temporary file cannot be created, since a directory of its name exists
+		assertTrue(destinations.get(0).temp.mkdir());
+		CopyStrategy.BUFFER.copy(source, null, destinations, false);
+		assertTrue(destinations.get(0).failed);
+		assertFalse(destinations.get(1).failed);
+		assertArrayEquals(content, Files.readAllBytes(destinations.get(1).temp.toPath()));
+	}
+
+	@Test
+	public void testSharedBufferIsWrittenToEachRoot() throws IOException {
+		byte[] content = content(3 * 1024 * 1024 + 5);
+		ByteBuffer data = CopyStrategy.readFully(createSource(content), null);
+		assertEquals(content.length, data.remaining());
+		List<FanOutCopyTask.Destination> destinations = createDestinations("ssd", "hdd");
+		CopyStrategy.writeFully(data, destinations.subList(0, 1));
+		CopyStrategy.writeFully(data, destinations.subList(1, 2));
+		for (FanOutCopyTask.Destination to : destinations) {
+			assertArrayEquals(content, Files.readAllBytes(to.temp.toPath()));
+		}
+		// the buffer is not consumed by the writers
+		assertEquals(content.length, data.remaining());
+	}
+
+	@Test
+	public void testSmallFilesUseTheBuffer() throws IOException {
+		File small = createSource(content(1024));
+		assertEquals(CopyStrategy.BUFFER, CopyStrategy.select(small, null, createDestinations("main"), false));
+		assertNull(CopyStrategy.get(TargetConfig.CopyMode.auto));
+		assertEquals(CopyStrategy.MAPPED, CopyStrategy.get(TargetConfig.CopyMode.mmap));
+	}
+}
@@ -0,0 +1,207 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.github.ythri.photoimport.config.Suffix;
+import com.github.ythri.photoimport.config.TargetConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FanOutCopyTaskTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TargetConfig target(String root) {
+		TargetConfig target = new TargetConfig();
+		target.root = new File(folder.getRoot(), root).getPath();
+		target.path = "";
+		target.file = "{filename}";
+		target.suffix = new Suffix();
+		return target;
+	}
+
+	private File createFile(String name, String content) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes("UTF-8"));
+		return file;
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+
+	/**
+	 * Counts the complete files in a directory, i.e., all files except the temporary files.
+	 */
+	private static int countComplete(File directory) {
+		String[] names = directory.list();
+		int count = 0;
+		for (String name : (names == null) ? new String[0] : names) {
+			if (!name.startsWith(".")) count++;
+		}
+		return count;
+	}
+
+	private List<ImportGroup> createGroups(int count, int size) throws IOException {
+		List<ImportGroup> groups = new ArrayList<ImportGroup>();
+		for (int i = 0; i < count; i++) {
+			File file = createFile("card/IMG_" + (1000 + i) + ".JPG", new String(new char[size]));
+			groups.add(new ImportGroup(Arrays.asList(file), 1001000 + i, null));
+		}
+		return groups;
+	}
+
+	@Test
+	public void testCapacityBlocksProducer() throws IOException {
+		CopyTask task = new CopyTask("main", target("main"), new HashMap<String, String>());
+		FanOutCopyTask copyTask = new FanOutCopyTask(Collections.singletonList(task));
+		copyTask.setCapacity(3);
+		// after the burst of the first second, each file takes 0.1 seconds to read
+		copyTask.setSourceBandwidth(10 * 1024L);
+		assertProducerWaits(copyTask, createGroups(30, 1024), new File(folder.getRoot(), "main"), 3);
+	}
+
+	@Test
+	public void testCapacityBlocksProducerOfLimitedRoot() throws IOException {
+		TargetConfig limited = target("nas");
+		// after the burst of the first second, each file takes 0.1 seconds to write
+		limited.bandwidth = 10 * 1024L;
+		CopyTask main = new CopyTask("main", target("main"), new HashMap<String, String>());
+		CopyTask nas = new CopyTask("nas", limited, new HashMap<String, String>());
+		FanOutCopyTask copyTask = new FanOutCopyTask(Arrays.asList(main, nas));
+		copyTask.setCapacity(3);
+		assertProducerWaits(copyTask, createGroups(30, 1024), new File(folder.getRoot(), "nas"), 3);
+		assertEquals(30, countComplete(new File(folder.getRoot(), "main")));
+	}
+
+	/**
+	 * Copies the groups and checks that the next group was only taken from the iterator when at
+	 * most {@code capacity} groups were not complete in the given root.
+	 */
+	private static void assertProducerWaits(FanOutCopyTask copyTask, final List<ImportGroup> groups, final File root, int capacity) {
+		final List<Integer> lag = new ArrayList<Integer>();
+		copyTask.copyFiles(new Iterable<ImportGroup>() {
+			public Iterator<ImportGroup> iterator() {
+				final Iterator<ImportGroup> it = groups.iterator();
+				return new Iterator<ImportGroup>() {
+					private int taken = 0;
+
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					public ImportGroup next() {
+						// the groups that were taken before, but are not copied yet
+						lag.add(taken - countComplete(root));
+						taken++;
+						return it.next();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		});
+
+		assertEquals(groups.size(), countComplete(root));
+		for (int i = 0; i < lag.size(); i++) {
+			// one more group may have been taken, whose slot is only acquired afterwards
+			assertTrue("group " + i + " was taken with " + lag.get(i) + " groups being copied", lag.get(i) <= capacity + 1);
+		}
+	}
+
+	@Test
+	public void testExistingDestinationIsNotOverwritten() throws IOException {
+		File source = createFile("card/IMG_0001.JPG", "new photo");
+		File existing = createFile("main/IMG_0001.JPG", "old photo");
+		CopyTask task = new CopyTask("main", target("main"), new HashMap<String, String>());
+		FanOutCopyTask copyTask = new FanOutCopyTask(Collections.singletonList(task));
+
+		Transfer transfer = new Transfer(source, 1000001, null);
+		transfer.addDestination("main", existing);
+		copyTask.copyTransfers(Collections.singletonList(transfer));
+
+		assertEquals("old photo", read(existing));
+		File moved = new File(existing.getParentFile(), "IMG_0001-1.JPG");
+		assertEquals("new photo", read(moved));
+		assertFalse(FileUtils.getTemporaryFile(existing).exists());
+		assertFalse(FileUtils.getTemporaryFile(moved).exists());
+		assertEquals(1, copyTask.getVerifications().size());
+		assertEquals(Verification.Status.ok, copyTask.getVerifications().get(0).getStatus());
+	}
+
+	@Test
+	public void testCopiesToAllTargets() throws IOException {
+		File first = createFile("card/IMG_0001.JPG", "first");
+		File second = createFile("card/IMG_0001.CR2", "second");
+		TargetConfig backup = target("backup");
+		backup.threads = 3;
+		CopyTask main = new CopyTask("main", target("main"), new HashMap<String, String>());
+		CopyTask other = new CopyTask("backup", backup, new HashMap<String, String>());
+		FanOutCopyTask copyTask = new FanOutCopyTask(Arrays.asList(main, other));
+		copyTask.setThreads(2);
+
+		copyTask.copyFiles(Collections.singletonList(new ImportGroup(Arrays.asList(first, second), 1000001, null)));
+
+		for (String root : new String[] { "main", "backup" }) {
+			assertEquals("first", read(new File(folder.getRoot(), root + "/IMG_0001.JPG")));
+			assertEquals("second", read(new File(folder.getRoot(), root + "/IMG_0001.CR2")));
+			String[] names = new File(folder.getRoot(), root).list();
+			Arrays.sort(names);
+			assertArrayEquals(new String[] { "IMG_0001.CR2", "IMG_0001.JPG" }, names);
+		}
+		assertEquals(4, copyTask.getVerifications().size());
+	}
+
+	@Test
+	public void testRootsAreWrittenByTheirOwnWriters() throws IOException {
+		TargetConfig ssd = target("ssd");
+		ssd.threads = 4;
+		TargetConfig hdd = target("hdd");
+		hdd.threads = 1;
+		hdd.verify = false;
+		CopyTask fast = new CopyTask("ssd", ssd, new HashMap<String, String>());
+		CopyTask slow = new CopyTask("hdd", hdd, new HashMap<String, String>());
+		// an existing file on one root is only moved aside on that root
+		createFile("hdd/IMG_1000.JPG", "old photo");
+		FanOutCopyTask copyTask = new FanOutCopyTask(Arrays.asList(fast, slow));
+		copyTask.setThreads(4);
+		copyTask.setCapacity(5);
+
+		List<ImportGroup> groups = createGroups(40, 1000);
+		copyTask.copyFiles(groups);
+
+		assertEquals(40, countComplete(new File(folder.getRoot(), "ssd")));
+		assertEquals(41, countComplete(new File(folder.getRoot(), "hdd")));
+		for (ImportGroup group : groups) {
+			String name = group.getFiles().get(0).getName();
+			String content = read(group.getFiles().get(0));
+			assertEquals(content, read(new File(folder.getRoot(), "ssd/" + name)));
+			if (!name.equals("IMG_1000.JPG")) {
+				assertEquals(content, read(new File(folder.getRoot(), "hdd/" + name)));
+			}
+		}
+		assertEquals("old photo", read(new File(folder.getRoot(), "hdd/IMG_1000.JPG")));
+		assertEquals(1000, new File(folder.getRoot(), "hdd/IMG_1000-1.JPG").length());
+		// only the destinations on the fast root are verified
+		assertEquals(40, copyTask.getVerifications().size());
+	}
+}
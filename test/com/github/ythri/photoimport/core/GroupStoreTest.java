@@ -0,0 +1,154 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class GroupStoreTest {
+	private static final String[] DIRECTORIES = { "/card/DCIM/100CANON", "/card/DCIM/101CANON", "/card/DCIM/100CANON/sub" };
+	private static final String[][] EXTENSIONS = { { ".JPG" }, { ".CR2", ".JPG" }, { ".MOV" } };
+
+	/**
+	 * Creates groups in random directories with random names and only a few distinct DateTimes,
+	 * such that many groups have the same DateTime.
+	 */
+	private static List<ImportGroup> createGroups(int count, long seed) {
+		Random random = new Random(seed);
+		List<ImportGroup> groups = new ArrayList<ImportGroup>(count);
+		for (int i = 0; i < count; i++) {
+			String directory = DIRECTORIES[random.nextInt(DIRECTORIES.length)];
+			String name = "IMG_" + (1000 + random.nextInt(9000));
+			List<File> files = new ArrayList<File>();
+			for (String extension : EXTENSIONS[random.nextInt(EXTENSIONS.length)]) {
+				files.add(new SourceFile(directory + File.separator + name + extension, random.nextInt(1 << 20), random.nextLong()));
+			}
+			groups.add(new ImportGroup(files, i, new Date(1400000000000L + 1000L * random.nextInt(20))));
+		}
+		return groups;
+	}
+
+	private static void assertOrder(List<ImportGroup> expected, GroupStore store) {
+		List<ImportGroup> actual = new ArrayList<ImportGroup>();
+		for (ImportGroup group : store) {
+			actual.add(group);
+		}
+		assertEquals(expected.size(), store.size());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			ImportGroup a = expected.get(i), b = actual.get(i);
+			assertEquals("files of group " + i, a.getFiles(), b.getFiles());
+			assertEquals("DCF number of group " + i, a.getDcfNumber(), b.getDcfNumber());
+			assertEquals("DateTime of group " + i, a.getDateTimeIfRead(), b.getDateTimeIfRead());
+			for (int f = 0; f < a.getFiles().size(); f++) {
+				assertEquals(a.getFiles().get(f).length(), b.getFiles().get(f).length());
+				assertEquals(a.getFiles().get(f).lastModified(), b.getFiles().get(f).lastModified());
+			}
+		}
+	}
+
+	private static void assertSorted(boolean dateOrder, int count, int budget) {
+		List<ImportGroup> groups = createGroups(count, 42);
+		GroupStore store = new GroupStore(dateOrder, budget);
+		store.found(groups);
+		List<ImportGroup> expected = new ArrayList<ImportGroup>(groups);
+		if (dateOrder) {
+			Collections.sort(expected);
+		} else {
+			Collections.sort(expected, ImportGroup.PATH_ORDER);
+		}
+		try {
+			assertOrder(expected, store);
+			// a second iteration returns the same order
+			assertOrder(expected, store);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testNaturalOrder() {
+		assertSorted(true, 1000, 0);
+	}
+
+	@Test
+	public void testNaturalOrderWithSpilling() {
+		assertSorted(true, 1000, 64);
+	}
+
+	@Test
+	public void testPathOrder() {
+		assertSorted(false, 1000, 0);
+	}
+
+	@Test
+	public void testPathOrderWithSpilling() {
+		assertSorted(false, 1000, 64);
+	}
+
+	@Test
+	public void testTiesKeepInsertionOrder() {
+		for (boolean dateOrder : new boolean[] { true, false }) {
+			for (int budget : new int[] { 0, 3 }) {
+				List<ImportGroup> groups = new ArrayList<ImportGroup>();
+				for (int i = 0; i < 20; i++) {
+					// all groups have the same DateTime and the same path, but different DCF numbers
+					groups.add(new ImportGroup(Arrays.<File>asList(new SourceFile("/card/DCIM/100CANON/IMG_0001.JPG", 1, 2)), i, new Date(1400000000000L)));
+				}
+				GroupStore store = new GroupStore(dateOrder, budget);
+				store.found(groups);
+				try {
+					assertOrder(groups, store);
+				} finally {
+					store.close();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCloseDeletesRuns() {
+		Set<File> before = listRuns();
+		GroupStore store = new GroupStore(true, 10);
+		store.found(createGroups(100, 7));
+		Set<File> runs = listRuns();
+		runs.removeAll(before);
+		assertFalse("groups were spilled to runs", runs.isEmpty());
+		store.close();
+		for (File run : runs) {
+			assertFalse(run + " was deleted", run.exists());
+		}
+	}
+
+	@Test
+	public void testEmptyStore() {
+		GroupStore store = new GroupStore(true, 10);
+		assertEquals(0, store.size());
+		assertFalse(store.iterator().hasNext());
+		store.close();
+	}
+
+	private static Set<File> listRuns() {
+		Set<File> runs = new HashSet<File>();
+		File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+		assertTrue(files != null);
+		for (File file : files) {
+			if (file.getName().startsWith("photoimport-groups") && file.getName().endsWith(".run")) {
+				runs.add(file);
+			}
+		}
+		return runs;
+	}
+}
@@ -0,0 +1,139 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImportLedgerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), ImportLedger.FILE_NAME);
+	}
+
+	private static File source(int i) {
+		return new SourceFile("/card/DCIM/100CANON/IMG_" + i + ".JPG", 1000 + i, 1400000000000L + i);
+	}
+
+	private static void record(ImportLedger ledger, int from, int to) {
+		for (int i = from; i < to; i++) {
+			ledger.record(new Transfer(source(i), i, (i % 2 == 0) ? null : new Date(i)), new File("/photos/IMG_" + i + ".JPG"));
+		}
+	}
+
+	private static void assertContains(ImportLedger ledger, int from, int to) {
+		for (int i = from; i < to; i++) {
+			assertTrue("ledger contains " + i, ledger.contains(source(i)));
+		}
+	}
+
+	@Test
+	public void testRoundTrip() {
+		// more entries than fit into a single block of the index
+		int count = 5 * ImportLedger.BLOCK_ENTRIES + 17;
+		ImportLedger ledger = new ImportLedger(file);
+		ledger.load();
+		record(ledger, 0, count);
+		assertContains(ledger, 0, count);
+		ledger.close();
+
+		ImportLedger loaded = new ImportLedger(file);
+		loaded.load();
+		assertContains(loaded, 0, count);
+		assertFalse(loaded.contains(source(count)));
+		// same name, but another size or modification time
+		assertFalse(loaded.contains(new SourceFile(source(1).getPath(), 1, 1400000000001L)));
+		assertFalse(loaded.contains(new SourceFile(source(1).getPath(), 1001, 0)));
+		assertTrue(loaded.containsAll(Arrays.asList(source(1), source(2))));
+		assertFalse(loaded.containsAll(Arrays.asList(source(1), source(count))));
+		loaded.close();
+	}
+
+	@Test
+	public void testRecordsAfterIndex() {
+		ImportLedger ledger = new ImportLedger(file);
+		ledger.load();
+		record(ledger, 0, 100);
+		ledger.close();
+
+		// the second import is interrupted before the ledger is closed and indexed
+		ImportLedger interrupted = new ImportLedger(file);
+		interrupted.load();
+		record(interrupted, 100, 200);
+
+		ImportLedger loaded = new ImportLedger(file);
+		loaded.load();
+		assertContains(loaded, 0, 200);
+		record(loaded, 200, 300);
+		loaded.close();
+
+		ImportLedger reloaded = new ImportLedger(file);
+		reloaded.load();
+		assertContains(reloaded, 0, 300);
+		reloaded.close();
+	}
+
+	@Test
+	public void testMissingIndex() {
+		ImportLedger ledger = new ImportLedger(file);
+		ledger.load();
+		record(ledger, 0, 1000);
+		ledger.close();
+		assertTrue(new File(file.getPath() + ".index").delete());
+
+		ImportLedger loaded = new ImportLedger(file);
+		loaded.load();
+		assertContains(loaded, 0, 1000);
+		loaded.close();
+	}
+
+	@Test
+	public void testTruncatedRecord() throws IOException {
+		ImportLedger ledger = new ImportLedger(file);
+		ledger.load();
+		record(ledger, 0, 10);
+		ledger.close();
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			// the start of a record of an interrupted import
+			out.write(new byte[] { 0, 12, 'I', 'M', 'G' });
+		} finally {
+			out.close();
+		}
+
+		ImportLedger loaded = new ImportLedger(file);
+		loaded.load();
+		assertContains(loaded, 0, 10);
+		record(loaded, 10, 20);
+		loaded.close();
+
+		ImportLedger reloaded = new ImportLedger(file);
+		reloaded.load();
+		assertContains(reloaded, 0, 20);
+		reloaded.close();
+	}
+
+	@Test
+	public void testEmptyLedger() {
+		ImportLedger ledger = new ImportLedger(file);
+		ledger.load();
+		assertFalse(ledger.contains(source(0)));
+		ledger.close();
+		assertFalse(file.exists());
+	}
+}
@@ -0,0 +1,94 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImportPlanTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File createSource(String name, int size) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Transfer first = new Transfer(createSource("IMG_0001.JPG", 10), 1000001, new Date(1400000000000L));
+		first.addDestination("main", new File("/photos/2014/IMG_1000001.JPG"));
+		first.addDestination("backup", new File("/backup/IMG_0001.JPG"));
+		first.addLink("backup", new File("/backup/old/IMG_0001.JPG"));
+		Transfer second = new Transfer(createSource("tab\tand\\backslash\nline.JPG", 20), -1, null);
+		second.addDestination("main", new File("/photos/with\ttab/and\\backslash\nline.JPG"));
+
+		File plan = new File(folder.getRoot(), "import.plan");
+		ImportPlan.write(plan, Arrays.asList(first, second));
+		List<Transfer> transfers = ImportPlan.read(plan);
+
+		assertEquals(2, transfers.size());
+		assertTransfer(first, transfers.get(0));
+		assertTransfer(second, transfers.get(1));
+		assertEquals(new File("/backup/old/IMG_0001.JPG"), transfers.get(0).getLink("backup"));
+		assertNull(transfers.get(0).getLink("main"));
+		assertNull(transfers.get(1).getLink("main"));
+	}
+
+	@Test
+	public void testAbsolutePaths() throws IOException {
+		Transfer transfer = new Transfer(createSource("IMG_0001.JPG", 10), 1000001, null);
+		transfer.addDestination("main", new File("relative/IMG_0001.JPG"));
+		File plan = new File(folder.getRoot(), "import.plan");
+		ImportPlan.write(plan, Arrays.asList(transfer));
+		Transfer read = ImportPlan.read(plan).get(0);
+		assertEquals(new File("relative/IMG_0001.JPG").getAbsoluteFile(), read.getDestinations().get("main"));
+	}
+
+	@Test
+	public void testChangedSourceIsSkipped() throws IOException {
+		File source = createSource("IMG_0001.JPG", 10);
+		Transfer transfer = new Transfer(source, 1000001, null);
+		transfer.addDestination("main", new File("/photos/IMG_0001.JPG"));
+		transfer.addDestination("backup", new File("/backup/IMG_0001.JPG"));
+		File plan = new File(folder.getRoot(), "import.plan");
+		ImportPlan.write(plan, Arrays.asList(transfer));
+		createSource("IMG_0001.JPG", 11);
+		assertEquals(0, ImportPlan.read(plan).size());
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedPlan() throws IOException {
+		File plan = createSource("import.plan", 0);
+		FileOutputStream out = new FileOutputStream(plan);
+		try {
+			out.write("P\t/card/IMG_0001.JPG\t10\t.\n".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		ImportPlan.read(plan);
+	}
+
+	static void assertTransfer(Transfer expected, Transfer actual) {
+		assertEquals(expected.getSource().getAbsoluteFile(), actual.getSource());
+		assertEquals(expected.getDcfNumber(), actual.getDcfNumber());
+		assertEquals(expected.getDateTime(), actual.getDateTime());
+		assertEquals(expected.getDestinations(), actual.getDestinations());
+	}
+}
@@ -0,0 +1,101 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.ythri.photoimport.config.SourceConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImportSourceTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** capture time of the photo with DCF file number 0 */
+	private static final long START = 1400000000000L;
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	private static final String[] PREFIXES = { "IMG_", "_MG_", "DSC_", "AB12" };
+
+	/**
+	 * Creates photos without EXIF data, whose DateTime is their modification time, which grows
+	 * with the DCF file number. The prefixes alternate, so the names are not ordered by number.
+	 */
+	private void createPhotos(String directory, int count) throws IOException {
+		File dir = new File(folder.getRoot(), "DCIM/" + directory);
+		dir.mkdirs();
+		for (int i = 1; i <= count; i++) {
+			File file = new File(dir, String.format("%s%04d.JPG", PREFIXES[i % PREFIXES.length], i));
+			Files.write(file.toPath(), new byte[] { 0 });
+			file.setLastModified(START + i * HOUR);
+		}
+	}
+
+	private ImportSource createSource() {
+		SourceConfig config = new SourceConfig();
+		config.path = folder.getRoot().getPath();
+		config.searchMode = SourceConfig.SearchMode.dcf;
+		ImportSource source = new ImportSource();
+		source.setSourceConfig(config);
+		return source;
+	}
+
+	private static List<Integer> getNumbers(List<ImportGroup> groups) {
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (ImportGroup group : groups) {
+			numbers.add(Integer.parseInt(group.getFiles().get(0).getName().substring(4, 8)));
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	@Test
+	public void testDateFilterWithMixedPrefixes() throws IOException {
+		createPhotos("100CANON", 400);
+		ImportSource source = createSource();
+		source.setDateFilter(new Date(START + 150 * HOUR), new Date(START + 250 * HOUR));
+
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 150; i <= 250; i++) {
+			expected.add(i);
+		}
+		assertEquals(expected, getNumbers(source.findPhotos()));
+	}
+
+	@Test
+	public void testDateFilterOnlyReadsTheRange() throws IOException {
+		createPhotos("100CANON", 400);
+		ImportSource source = createSource();
+		source.setDateFilter(new Date(START + 150 * HOUR), new Date(START + 250 * HOUR));
+		ImportGroup.getExifFromExtensions(Arrays.asList("jpg"));
+		Metrics.reset();
+		try {
+			assertEquals(101, source.findPhotos().size());
+			// the 101 groups in the filter, the margins and the groups read by the search, but
+			// not the groups after the range
+			long read = ((Number) getPhase(Metrics.EXIF).get("count")).longValue();
+			assertTrue(read + " of 400 groups were read", read < 200);
+		} finally {
+			ImportGroup.getExifFromExtensions(null);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getPhase(String phase) {
+		Map<String, Object> phases = (Map<String, Object>) Metrics.getReport().get("phases");
+		return (Map<String, Object>) phases.get(phase);
+	}
+}
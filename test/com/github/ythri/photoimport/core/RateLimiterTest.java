@@ -0,0 +1,64 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+	private static long millisSince(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	@Test
+	public void testIdleDeviceBurstsForOneSecond() {
+		RateLimiter limiter = new RateLimiter("card", 100 * 1024);
+		long start = System.nanoTime();
+		limiter.acquire(100 * 1024);
+		assertTrue(millisSince(start) < 200);
+	}
+
+	@Test
+	public void testBytesAfterTheBurstWait() {
+		RateLimiter limiter = new RateLimiter("card", 100 * 1024);
+		long start = System.nanoTime();
+		limiter.acquire(100 * 1024);
+		// half a second at the configured rate
+		limiter.acquire(50 * 1024);
+		long elapsed = millisSince(start);
+		assertTrue("waited " + elapsed + " ms", elapsed >= 400 && elapsed < 1500);
+	}
+
+	@Test
+	public void testReservationsOfWorkersAddUp() throws InterruptedException {
+		final RateLimiter limiter = new RateLimiter("nas", 100 * 1024);
+		limiter.acquire(100 * 1024);
+		long start = System.nanoTime();
+		Thread[] workers = new Thread[4];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					limiter.acquire(25 * 1024);
+				}
+			});
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		// the last worker waits for the reservations of all workers
+		long elapsed = millisSince(start);
+		assertTrue("waited " + elapsed + " ms", elapsed >= 800 && elapsed < 2500);
+	}
+
+	@Test
+	public void testInterruptEndsWaiting() {
+		RateLimiter limiter = new RateLimiter("card", 1024);
+		Thread.currentThread().interrupt();
+		long start = System.nanoTime();
+		limiter.acquire(60 * 1024);
+		assertTrue(Thread.interrupted());
+		assertTrue(millisSince(start) < 1000);
+	}
+}
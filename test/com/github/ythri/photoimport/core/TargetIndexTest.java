@@ -0,0 +1,75 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TargetIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private boolean isCaseInsensitive() throws IOException {
+		folder.newFile("probe");
+		return new File(folder.getRoot(), "PROBE").exists();
+	}
+
+	@Test
+	public void testNamesAreCaseInsensitive() throws IOException {
+		File directory = folder.newFolder("2014");
+		new File(directory, "IMG_0001.JPG").createNewFile();
+		TargetIndex index = new TargetIndex();
+		assertTrue(index.exists(new File(directory, "IMG_0001.JPG")));
+		assertTrue(index.exists(new File(directory, "img_0001.jpg")));
+		assertFalse(index.exists(new File(directory, "IMG_0002.JPG")));
+
+		index.add(new File(directory, "IMG_0002.jpg"));
+		assertTrue(index.exists(new File(directory, "img_0002.JPG")));
+		// added files are only reserved in the index
+		assertFalse(new File(directory, "IMG_0002.jpg").exists());
+	}
+
+	@Test
+	public void testDirectoryThatDiffersInCaseIsCreated() throws IOException {
+		assumeFalse(isCaseInsensitive());
+		File lower = folder.newFolder("event");
+		File upper = new File(folder.getRoot(), "Event");
+		TargetIndex index = new TargetIndex();
+		index.mkdirs(lower);
+		index.mkdirs(upper);
+		assertTrue(upper.isDirectory());
+
+		// the listings of both directories are kept apart
+		index.add(new File(lower, "IMG_0001.JPG"));
+		assertFalse(index.exists(new File(upper, "IMG_0001.JPG")));
+	}
+
+	@Test
+	public void testMkdirsUpdatesParentListings() throws IOException {
+		File root = folder.getRoot();
+		TargetIndex index = new TargetIndex();
+		assertFalse(index.exists(new File(root, "2014")));
+		index.mkdirs(new File(root, "2014/05/Party"));
+		assertTrue(new File(root, "2014/05/Party").isDirectory());
+		assertTrue(index.exists(new File(root, "2014")));
+		assertTrue(index.exists(new File(root, "2014/05")));
+		assertTrue(index.exists(new File(root, "2014/05/party")));
+	}
+
+	@Test
+	public void testDryRunDoesNotCreateDirectories() {
+		File directory = new File(folder.getRoot(), "2014/05");
+		TargetIndex index = new TargetIndex();
+		index.setDryRun(true);
+		index.mkdirs(directory);
+		assertFalse(directory.exists());
+		index.add(new File(directory, "IMG_0001.JPG"));
+		assertTrue(index.exists(new File(directory, "IMG_0001.JPG")));
+	}
+}
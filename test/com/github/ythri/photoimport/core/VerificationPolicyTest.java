@@ -0,0 +1,87 @@
+package com.github.ythri.photoimport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.github.ythri.photoimport.config.TargetConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VerificationPolicyTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File createFile(String name, int size) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), new byte[size]);
+		return file;
+	}
+
+	private static int countSelected(VerificationPolicy policy, File source, int files) {
+		int selected = 0;
+		for (int i = 0; i < files; i++) {
+			if (policy.select(source)) selected++;
+		}
+		return selected;
+	}
+
+	@Test
+	public void testFullVerifiesAllFiles() throws IOException {
+		TargetConfig target = new TargetConfig();
+		assertEquals(20, countSelected(new VerificationPolicy(target), createFile("IMG_0001.JPG", 10), 20));
+	}
+
+	@Test
+	public void testNoFileIsSelectedWithoutVerification() throws IOException {
+		TargetConfig target = new TargetConfig();
+		target.verify = false;
+		target.verifypolicy = TargetConfig.VerifyPolicy.size;
+		target.verifysize = 0L;
+		assertEquals(0, countSelected(new VerificationPolicy(target), createFile("IMG_0001.CR2", 10), 20));
+	}
+
+	@Test
+	public void testNthStartsWithTheFirstFile() throws IOException {
+		TargetConfig target = new TargetConfig();
+		target.verifypolicy = TargetConfig.VerifyPolicy.nth;
+		target.verifyevery = 3;
+		VerificationPolicy policy = new VerificationPolicy(target);
+		File source = createFile("IMG_0001.JPG", 10);
+		boolean[] expected = { true, false, false, true, false, false, true };
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("file " + i, expected[i], policy.select(source));
+		}
+	}
+
+	@Test
+	public void testRandomSelectsThePercentage() throws IOException {
+		TargetConfig target = new TargetConfig();
+		target.verifypolicy = TargetConfig.VerifyPolicy.random;
+		File source = createFile("IMG_0001.JPG", 10);
+		target.verifypercent = 0;
+		assertEquals(0, countSelected(new VerificationPolicy(target), source, 100));
+		target.verifypercent = 100;
+		assertEquals(100, countSelected(new VerificationPolicy(target), source, 100));
+		target.verifypercent = 10;
+		int selected = countSelected(new VerificationPolicy(target), source, 10000);
+		assertTrue(selected + " of 10000 files were selected", selected > 700 && selected < 1300);
+	}
+
+	@Test
+	public void testSizeSelectsLargeFiles() throws IOException {
+		TargetConfig target = new TargetConfig();
+		target.verifypolicy = TargetConfig.VerifyPolicy.size;
+		target.verifysize = 1000L;
+		VerificationPolicy policy = new VerificationPolicy(target);
+		assertFalse(policy.select(createFile("IMG_0001.JPG", 999)));
+		assertTrue(policy.select(createFile("IMG_0001.CR2", 1000)));
+		assertTrue(policy.select(createFile("MVI_0002.MOV", 5000)));
+	}
+}